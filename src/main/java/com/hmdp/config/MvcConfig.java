@@ -1,7 +1,9 @@
 package com.hmdp.config;
 
+import com.hmdp.utils.AdminInterceptor;
 import com.hmdp.utils.LoginInterceptor;
 import com.hmdp.utils.RefreshTokenInterceptor;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
@@ -9,6 +11,7 @@ import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 import javax.annotation.Resource;
+import java.util.Set;
 
 @Configuration
 public class MvcConfig implements WebMvcConfigurer {
@@ -16,17 +19,27 @@ public class MvcConfig implements WebMvcConfigurer {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    //管理员用户id，逗号分隔
+    @Value("${hmdp.admin.user-ids:}")
+    private Set<Long> adminIds;
+
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         registry.addInterceptor(new LoginInterceptor())
                 .excludePathPatterns("/blog/hot",
                         "/shop-type/**",
-                        "/voucher/**",
+                        "/voucher",
+                        "/voucher/seckill",
+                        "/voucher/list/**",
                         "/upload/**",
                         "/user/code",
                         "/user/login",
-                        "/shop/**"
+                        "/shop/**",
+                        "/actuator/**" //监控端点只在本机管理端口提供（management.server），管理端口也会应用这里的拦截器
                 ).order(1);
+        //管理接口，仅管理员可以访问
+        registry.addInterceptor(new AdminInterceptor(adminIds))
+                .addPathPatterns("/voucher/seckill/limit/**").order(2);
         registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)).addPathPatterns("/**").order(0);
     }
 }
@@ -0,0 +1,36 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.BloomFilterClient;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisLockClient;
+import com.hmdp.utils.SoldOutRegistry;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_ADD_CHANNEL;
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
+import static com.hmdp.utils.RedisConstants.LOCK_UNLOCK_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+@Configuration
+public class RedisListenerConfig {
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(
+            RedisConnectionFactory connectionFactory, CacheClient cacheClient, SoldOutRegistry soldOutRegistry,
+            RedisLockClient redisLockClient, BloomFilterClient bloomFilterClient){
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        //本地缓存失效通知
+        container.addMessageListener(cacheClient, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        //布隆过滤器新增id通知
+        container.addMessageListener(bloomFilterClient, new ChannelTopic(BLOOM_ADD_CHANNEL));
+        //秒杀售罄通知
+        container.addMessageListener(soldOutRegistry, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+        //分布式锁释放通知
+        container.addMessageListener(redisLockClient, new ChannelTopic(LOCK_UNLOCK_CHANNEL));
+        return container;
+    }
+}
@@ -45,6 +45,22 @@ public class VoucherController {
         return Result.ok(voucher.getId());
     }
 
+    /**
+     * 修改秒杀券的限流参数，未传的参数保持不变
+     * @param voucherId 优惠券id
+     * @param rate 每秒准入请求数（所有节点共享）
+     * @param burst 令牌桶容量，允许的突发请求数
+     * @param concurrency 单个节点同时处理的请求数
+     */
+    @PutMapping("seckill/limit/{id}")
+    public Result updateSeckillLimit(@PathVariable("id") Long voucherId,
+                                     @RequestParam(value = "rate", required = false) Integer rate,
+                                     @RequestParam(value = "burst", required = false) Integer burst,
+                                     @RequestParam(value = "concurrency", required = false) Integer concurrency) {
+        voucherService.updateSeckillLimit(voucherId, rate, burst, concurrency);
+        return Result.ok();
+    }
+
     /**
      * 查询店铺的优惠券列表
      * @param shopId 店铺id
@@ -3,6 +3,8 @@ package com.hmdp.controller;
 
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.SeckillLimiter;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -23,9 +25,21 @@ import javax.annotation.Resource;
 public class VoucherOrderController {
     @Resource
     private IVoucherOrderService iVoucherOrderService;
+    @Resource
+    private SeckillLimiter seckillLimiter;
 
     @PostMapping("seckill/{id}")
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
-        return iVoucherOrderService.seckillVoucher(voucherId);
+        //先经过准入控制，削减超出处理能力的请求
+        return seckillLimiter.execute(voucherId, () -> iVoucherOrderService.seckillVoucher(voucherId));
+    }
+
+    /**
+     * 查询秒杀订单状态：queued 排队中，persisted 下单成功，failed 下单失败
+     * @param orderId 订单id
+     */
+    @GetMapping("/{id}")
+    public Result queryOrderStatus(@PathVariable("id") Long orderId) {
+        return iVoucherOrderService.queryOrderStatus(orderId);
     }
 }
@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.Blog;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.Map;
 
 /**
  * <p>
@@ -13,4 +16,10 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface BlogMapper extends BaseMapper<Blog> {
 
+    int incrementLiked(@Param("deltas") Map<Long, Long> deltas);
+
+    int insertLikeFlush(@Param("flushId") long flushId);
+
+    int deleteLikeFlush(@Param("flushId") long flushId);
+
 }
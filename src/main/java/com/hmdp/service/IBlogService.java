@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Blog;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.Map;
+
 /**
  * <p>
  *  服务类
@@ -19,4 +21,20 @@ public interface IBlogService extends IService<Blog> {
     Result likeBlog(Long id);
 
     Result queryHotBlog(Integer current);
+
+    Result saveBlog(Blog blog);
+
+    /**
+     * 在一个事务中写入一批点赞数增量
+     * @param flushId 批次号，同一批次只会写入一次
+     * @return 批次已写入过时返回false
+     */
+    boolean applyLikeDeltas(long flushId, Map<Long, Long> deltas);
+
+    /**
+     * 在一个事务中逐条写入一批点赞数增量，单条写入失败时跳过该笔记，其余照常写入
+     * @param flushId 批次号，同一批次只会写入一次
+     * @return 写入失败的笔记id和增量，批次已写入过时为空
+     */
+    Map<Long, Long> applyLikeDeltasByRow(long flushId, Map<Long, Long> deltas);
 }
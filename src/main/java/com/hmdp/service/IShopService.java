@@ -17,4 +17,10 @@ public interface IShopService extends IService<Shop> {
     Result queryById(Long id);
 
     Result update(Shop shop);
+
+    Result saveShop(Shop shop);
+
+    Result queryShopByType(Integer typeId, Integer current, Double x, Double y, Double lastDistance, Long lastId);
+
+    void loadShopGeo();
 }
@@ -1,22 +1,51 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
-import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.BloomFilterClient;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.ILock;
+import com.hmdp.utils.RedisLockClient;
+import com.hmdp.utils.RedisWorker;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -26,17 +55,51 @@ import java.util.List;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IBlogService {
     @Resource
     private IUserService userService;
     @Resource
-    private IBlogService blogService;
-    @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private BloomFilterClient bloomFilterClient;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private RedisLockClient redisLockClient;
+    @Resource
+    private RedisWorker redisWorker;
+    //代理对象，保证定时任务中调用applyLikeDeltas时事务生效
+    @Resource
+    private IBlogService blogService;
+
+    public static final DefaultRedisScript<Long> LIKE_SCRIPT;
+    public static final DefaultRedisScript<Long> SEED_HOT_SCRIPT;
+    static {
+        LIKE_SCRIPT = new DefaultRedisScript<>();
+        LIKE_SCRIPT.setLocation(new ClassPathResource("like.lua"));
+        LIKE_SCRIPT.setResultType(Long.class);
+        SEED_HOT_SCRIPT = new DefaultRedisScript<>();
+        SEED_HOT_SCRIPT.setLocation(new ClassPathResource("seedHotBlogs.lua"));
+        SEED_HOT_SCRIPT.setResultType(Long.class);
+    }
+    //本节点是否已确认排行榜导入完成
+    private volatile boolean hotBlogsSeeded;
+
+    @PostConstruct
+    private void init(){
+        //笔记id布隆过滤器，拦截不存在的id
+        bloomFilterClient.register(CACHE_BLOG_KEY,
+                () -> listObjs(new QueryWrapper<Blog>().select("id"), o -> Long.valueOf(o.toString())));
+    }
 
     @Override
     public Result queryBlogById(Long id) {
+        //布隆过滤器判断一定不存在，不再查询数据库
+        if (!bloomFilterClient.mightContain(CACHE_BLOG_KEY, id)){
+            return Result.fail("笔记不存在");
+        }
         //查询blog
         Blog blog = getById(id);
         if (blog==null){
@@ -49,11 +112,28 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
 
     //查询blog相关用户是否点过赞
     private void isBlogLiked(Blog blog) {
-        Long userId = UserHolder.getUser().getId();
-        //判断当前登录用户是否点赞
-        String key = "blog:liked"+blog.getId();
-        Boolean isMember = stringRedisTemplate.opsForSet().isMember(key, userId.toString());
-        blog.setIsLike(BooleanUtil.isTrue(isMember));
+        isBlogsLiked(Collections.singletonList(blog));
+    }
+
+    //批量查询当前用户是否点过赞：一次pipeline执行全部 ZSCORE blog:liked:{id} userId
+    private void isBlogsLiked(List<Blog> blogs) {
+        UserDTO user = UserHolder.getUser();
+        if (user == null || blogs.isEmpty()){
+            //未登录，全部视为未点赞
+            blogs.forEach(blog -> blog.setIsLike(false));
+            return;
+        }
+        String userId = user.getId().toString();
+        List<Object> scores = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringRedisConnection = (StringRedisConnection) connection;
+            for (Blog blog : blogs) {
+                stringRedisConnection.zScore(BLOG_LIKED_KEY + blog.getId(), userId);
+            }
+            return null;
+        });
+        for (int i = 0; i < blogs.size(); i++) {
+            blogs.get(i).setIsLike(scores.get(i) != null);
+        }
     }
     //查询blog相关用户
     private void queryBlogUser(Blog blog) {
@@ -69,38 +149,296 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     public Result likeBlog(Long id) {
         //获取当前登录用户
         Long userId = UserHolder.getUser().getId();
-        //判断当前登录用户是否点赞
-        String key = "blog:liked"+id;
-        Boolean isMember = stringRedisTemplate.opsForSet().isMember(key, userId.toString());
-        //未点赞，数据库点赞数+1
-        //保存用户到redis的set集合
-        if (BooleanUtil.isFalse(isMember)){
-            boolean isSuccess = update().setSql("liked = liked + 1").eq("id", id).update();
-            if (isSuccess){
-                stringRedisTemplate.opsForSet().add(key,userId.toString());
-            }
-        }else {
-            //已点赞，数据库-1
-            //把用户从redis的set集合移除
-            update().setSql("liked = liked - 1").eq("id",id).update();
-            stringRedisTemplate.opsForSet().remove(key,userId.toString());
+        //布隆过滤器判断一定不存在，不再访问Redis
+        if (!bloomFilterClient.mightContain(CACHE_BLOG_KEY, id)){
+            return Result.fail("笔记不存在");
         }
+        //执行lua脚本：未点赞则点赞，已点赞则取消；同时更新热门排行榜和点赞数增量，增量由定时任务批量写入数据库
+        stringRedisTemplate.execute(LIKE_SCRIPT,
+                Arrays.asList(BLOG_LIKED_KEY + id, BLOG_HOT_KEY, BLOG_LIKED_DELTA_KEY),
+                userId.toString(), id.toString(), String.valueOf(System.currentTimeMillis()));
         return Result.ok();
     }
 
+    @Override
+    public Result saveBlog(Blog blog) {
+        // 获取登录用户
+        UserDTO user = UserHolder.getUser();
+        blog.setUserId(user.getId());
+        // 保存探店博文
+        save(blog);
+        bloomFilterClient.add(CACHE_BLOG_KEY, blog.getId());
+        //加入热门笔记排行榜
+        stringRedisTemplate.opsForZSet().add(BLOG_HOT_KEY, blog.getId().toString(), 0);
+        // 返回id
+        return Result.ok(blog.getId());
+    }
+
     @Override
     public Result queryHotBlog(Integer current) {
-        // 根据用户查询
-        Page<Blog> page = blogService.query()
-                .orderByDesc("liked")
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 获取当前页数据
-        List<Blog> records = page.getRecords();
-        // 查询用户
+        if (!hotBlogsSeeded){
+            //排行榜尚未导入完成，按数据库中的点赞数分页查询
+            List<Blog> records = query()
+                    .orderByDesc("liked")
+                    .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE))
+                    .getRecords();
+            queryBlogUsers(records);
+            isBlogsLiked(records);
+            return Result.ok(records);
+        }
+        // 从排行榜查询当前页的笔记id ZREVRANGE blog:hot start end WITHSCORES
+        long start = (long) (current - 1) * SystemConstants.MAX_PAGE_SIZE;
+        Set<ZSetOperations.TypedTuple<String>> tuples = stringRedisTemplate.opsForZSet()
+                .reverseRangeWithScores(BLOG_HOT_KEY, start, start + SystemConstants.MAX_PAGE_SIZE - 1);
+        if (tuples == null || tuples.isEmpty()){
+            return Result.ok(Collections.emptyList());
+        }
+        List<Long> blogIds = new ArrayList<>(tuples.size());
+        Map<Long, Integer> likes = new HashMap<>(tuples.size());
+        for (ZSetOperations.TypedTuple<String> tuple : tuples) {
+            Long blogId = Long.valueOf(tuple.getValue());
+            blogIds.add(blogId);
+            likes.put(blogId, tuple.getScore() == null ? 0 : tuple.getScore().intValue());
+        }
+        // 数据库只用于查询笔记内容，按排行榜顺序排列
+        Map<Long, Blog> blogs = listByIds(blogIds).stream().collect(Collectors.toMap(Blog::getId, b -> b));
+        List<Blog> records = new ArrayList<>(blogIds.size());
+        for (Long blogId : blogIds) {
+            Blog blog = blogs.get(blogId);
+            if (blog != null){
+                blog.setLiked(likes.get(blogId));
+                records.add(blog);
+            }
+        }
+        queryBlogUsers(records);
+        // 批量查询点赞状态，一次Redis往返
+        isBlogsLiked(records);
+        return Result.ok(records);
+    }
+
+    // 批量查询用户，一次MGET，未命中的一次listByIds
+    private void queryBlogUsers(List<Blog> records) {
+        List<Long> userIds = records.stream().map(Blog::getUserId).collect(Collectors.toList());
+        Map<Long, UserDTO> users = cacheClient
+                .queryBatch(CACHE_USER_KEY, userIds, UserDTO.class,
+                        ids -> BeanUtil.copyToList(userService.listByIds(ids), UserDTO.class),
+                        CACHE_USER_TTL, TimeUnit.MINUTES)
+                .stream().collect(Collectors.toMap(UserDTO::getId, u -> u));
         records.forEach(blog ->{
-            queryBlogUser(blog);
-            isBlogLiked(blog);
+            UserDTO user = users.get(blog.getUserId());
+            if (user != null){
+                blog.setIcon(user.getIcon()).setName(user.getNickName());
+            }
         });
-        return Result.ok(records);
+    }
+
+    /**
+     * 定时把点赞数增量写入数据库：
+     * 1.RENAMENX 把增量hash换成待写入key，并分配批次号，之后的点赞写入新的增量hash
+     * 2.同一事务中记录批次号并用一条 UPDATE ... CASE 语句写入全部笔记的增量，批次号已存在说明已经写入过，直接跳过
+     * 3.删除待写入key；数据库暂时不可用时保留，下次用同一批次号重试
+     * 4.其他错误（例如点赞数超出范围）改为逐条写入，只有写入失败的笔记转入死信hash，其余增量照常写入
+     */
+    @Scheduled(fixedDelay = BLOG_LIKE_FLUSH_INTERVAL)
+    public void flushLikeDeltas() {
+        //只有一个节点执行，避免同一批增量被并发写入
+        ILock lock = redisLockClient.getLock(BLOG_LIKED_FLUSHING_KEY);
+        if (!lock.tryLock(LOCK_SHOP_TTL)){
+            return;
+        }
+        try {
+            flushPendingLikes();
+        } catch (Exception e) {
+            log.error("写入点赞数失败", e);
+        } finally {
+            lock.unLock();
+        }
+    }
+
+    //写入待写入的增量，返回是否已没有待写入的批次，调用方需持有写入锁
+    private boolean flushPendingLikes() {
+        //上一次写入失败时待写入key仍存在，先处理它
+        if (BooleanUtil.isFalse(stringRedisTemplate.hasKey(BLOG_LIKED_FLUSHING_KEY))){
+            if (BooleanUtil.isFalse(stringRedisTemplate.hasKey(BLOG_LIKED_DELTA_KEY))
+                    || BooleanUtil.isFalse(stringRedisTemplate.renameIfAbsent(BLOG_LIKED_DELTA_KEY, BLOG_LIKED_FLUSHING_KEY))){
+                return true;
+            }
+        }
+        //批次号：首次处理该批次时分配，重试时沿用
+        String flushId = stringRedisTemplate.opsForValue().get(BLOG_LIKED_FLUSH_ID_KEY);
+        if (flushId == null){
+            stringRedisTemplate.opsForValue().setIfAbsent(BLOG_LIKED_FLUSH_ID_KEY, String.valueOf(redisWorker.nextId("like")));
+            flushId = stringRedisTemplate.opsForValue().get(BLOG_LIKED_FLUSH_ID_KEY);
+        }
+        Map<Object, Object> entries = stringRedisTemplate.opsForHash().entries(BLOG_LIKED_FLUSHING_KEY);
+        Map<Long, Long> deltas = new HashMap<>(entries.size());
+        entries.forEach((blogId, delta) -> {
+            long value = Long.parseLong(delta.toString());
+            if (value != 0){
+                deltas.put(Long.valueOf(blogId.toString()), value);
+            }
+        });
+        try {
+            if (!blogService.applyLikeDeltas(Long.parseLong(flushId), deltas)){
+                log.warn("点赞数批次{}已写入数据库，跳过", flushId);
+            }
+        } catch (DataAccessResourceFailureException | TransientDataAccessException e) {
+            //数据库暂时不可用，保留批次下次重试
+            log.error("写入点赞数失败，批次{}", flushId, e);
+            return false;
+        } catch (Exception e) {
+            //数据错误无法通过重试解决，逐条写入，找出出错的笔记
+            log.error("批量写入点赞数失败，批次{}，改为逐条写入", flushId, e);
+            if (!deadLetterLikeDeltas(flushId, deltas)){
+                return false;
+            }
+        }
+        stringRedisTemplate.delete(Arrays.asList(BLOG_LIKED_FLUSHING_KEY, BLOG_LIKED_FLUSH_ID_KEY));
+        //批次已从Redis删除，不会再被重试，批次记录可以删除
+        try {
+            getBaseMapper().deleteLikeFlush(Long.parseLong(flushId));
+        } catch (Exception e) {
+            log.warn("删除点赞数批次记录{}失败", flushId, e);
+        }
+        return true;
+    }
+
+    //逐条写入，失败的增量累加到死信hash中等待人工处理；返回false表示需要保留批次重试
+    private boolean deadLetterLikeDeltas(String flushId, Map<Long, Long> deltas) {
+        Map<Long, Long> failed;
+        try {
+            failed = blogService.applyLikeDeltasByRow(Long.parseLong(flushId), deltas);
+        } catch (Exception e) {
+            log.error("逐条写入点赞数失败，批次{}", flushId, e);
+            return false;
+        }
+        if (failed.isEmpty()){
+            return true;
+        }
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                failed.forEach((blogId, delta) -> conn.hIncrBy(BLOG_LIKED_DEAD_LETTER_KEY, blogId.toString(), delta));
+                return null;
+            });
+        } catch (Exception e) {
+            //其余增量已提交，批次不能再重试，失败的增量只保留在日志中
+            log.error("点赞数批次{}写入死信hash失败：{}", flushId, failed, e);
+            return true;
+        }
+        log.error("点赞数批次{}中{}篇笔记写入失败，已转入{}：{}", flushId, failed.size(), BLOG_LIKED_DEAD_LETTER_KEY, failed);
+        return true;
+    }
+
+    @Override
+    @Transactional
+    public Map<Long, Long> applyLikeDeltasByRow(long flushId, Map<Long, Long> deltas) {
+        if (getBaseMapper().insertLikeFlush(flushId) == 0){
+            return Collections.emptyMap();
+        }
+        Map<Long, Long> failed = new HashMap<>();
+        deltas.forEach((blogId, delta) -> {
+            try {
+                getBaseMapper().incrementLiked(Collections.singletonMap(blogId, delta));
+            } catch (DataAccessResourceFailureException | TransientDataAccessException e) {
+                //数据库不可用或事务被回滚，整批下次重试
+                throw e;
+            } catch (DataAccessException e) {
+                //出错的语句单独回滚，不影响事务中的其他语句
+                failed.put(blogId, delta);
+            }
+        });
+        return failed;
+    }
+
+    @Override
+    @Transactional
+    public boolean applyLikeDeltas(long flushId, Map<Long, Long> deltas) {
+        //批次号是主键，已存在说明该批次之前已经提交
+        if (getBaseMapper().insertLikeFlush(flushId) == 0){
+            return false;
+        }
+        if (!deltas.isEmpty()){
+            getBaseMapper().incrementLiked(deltas);
+        }
+        return true;
+    }
+
+    /**
+     * 启动后在定时任务中从数据库导入热门笔记排行榜，只有一个节点执行，不占用请求线程：
+     * 导入标记先写入 started（带过期时间，导入节点宕机后可由其他节点重新导入），完成后改为 done
+     * 导入期间照常点赞，导入脚本按数据库点赞数和未写入的增量设置分数，不会覆盖这些点赞；排行榜查询回退到数据库
+     */
+    @Scheduled(initialDelay = 0, fixedDelay = BLOG_HOT_SEED_CHECK_INTERVAL)
+    public void ensureHotBlogs() {
+        if (hotBlogsSeeded){
+            return;
+        }
+        try {
+            trySeedHotBlogs();
+        } catch (Exception e) {
+            log.error("导入热门笔记排行榜失败，稍后重试", e);
+        }
+    }
+
+    private void trySeedHotBlogs() {
+        String state = stringRedisTemplate.opsForValue().get(BLOG_HOT_SEED_KEY);
+        if (SystemConstants.HOT_BLOG_SEED_DONE.equals(state)){
+            hotBlogsSeeded = true;
+            return;
+        }
+        if (state != null){
+            //其他节点正在导入
+            return;
+        }
+        Boolean first = stringRedisTemplate.opsForValue().setIfAbsent(
+                BLOG_HOT_SEED_KEY, SystemConstants.HOT_BLOG_SEED_STARTED, BLOG_HOT_SEED_TTL, TimeUnit.SECONDS);
+        if (BooleanUtil.isFalse(first)){
+            return;
+        }
+        try {
+            seedHotBlogs();
+        } catch (RuntimeException e) {
+            //导入失败，允许下次重新导入
+            stringRedisTemplate.delete(BLOG_HOT_SEED_KEY);
+            throw e;
+        }
+        stringRedisTemplate.opsForValue().set(BLOG_HOT_SEED_KEY, SystemConstants.HOT_BLOG_SEED_DONE);
+        hotBlogsSeeded = true;
+    }
+
+    private void seedHotBlogs() {
+        //导入期间不能写入点赞增量：否则读取数据库之后写入的增量会被计算两次
+        ILock lock = redisLockClient.getLock(BLOG_LIKED_FLUSHING_KEY);
+        if (!lock.tryLock(BLOG_HOT_SEED_LOCK_WAIT, TimeUnit.SECONDS.toMillis(LOCK_SHOP_TTL), TimeUnit.MILLISECONDS)){
+            throw new IllegalStateException("导入热门笔记排行榜失败：点赞数正在写入数据库");
+        }
+        try {
+            //先处理待写入的批次，之后未写入数据库的增量只在增量hash中
+            if (!flushPendingLikes()){
+                throw new IllegalStateException("导入热门笔记排行榜失败：点赞数写入数据库失败");
+            }
+            long lastId = 0;
+            while (true) {
+                //按id分批读取 id, liked
+                List<Blog> blogs = query().select("id", "liked").gt("id", lastId).orderByAsc("id")
+                        .last("limit " + BLOG_HOT_SEED_BATCH).list();
+                if (blogs.isEmpty()){
+                    return;
+                }
+                String[] args = new String[blogs.size() * 2];
+                for (int i = 0; i < blogs.size(); i++) {
+                    Blog blog = blogs.get(i);
+                    args[i * 2] = blog.getId().toString();
+                    args[i * 2 + 1] = String.valueOf(blog.getLiked() == null ? 0 : blog.getLiked());
+                }
+                //分数 = 数据库点赞数 + 未写入的增量，同时迁移旧版本的点赞集合
+                stringRedisTemplate.execute(SEED_HOT_SCRIPT,
+                        Arrays.asList(BLOG_HOT_KEY, BLOG_LIKED_DELTA_KEY), (Object[]) args);
+                lastId = blogs.get(blogs.size() - 1).getId();
+            }
+        } finally {
+            lock.unLock();
+        }
     }
 }
@@ -1,25 +1,48 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.bean.copier.CopyOptions;
+import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import com.hmdp.utils.BloomFilterClient;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.GeoGridIndex;
 import com.hmdp.utils.RedisData;
+import com.hmdp.utils.SystemConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.geo.Circle;
+import org.springframework.data.geo.Distance;
+import org.springframework.data.geo.GeoResult;
+import org.springframework.data.geo.GeoResults;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -31,12 +54,26 @@ import static com.hmdp.utils.RedisConstants.*;
  * @author myw
  * @since 2023-3-20
  */
+@Slf4j
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private CacheClient cacheClient;
+    @Resource
+    private BloomFilterClient bloomFilterClient;
+    //本地网格索引，Redis不可用时查询附近店铺
+    private final GeoGridIndex shopGeoIndex = new GeoGridIndex(SHOP_GEO_CELL_SIZE);
+
+    @PostConstruct
+    private void init(){
+        //热点店铺开启本地缓存
+        cacheClient.enableLocalCache(CACHE_SHOP_KEY, LOCAL_CACHE_SHOP_SIZE, LOCAL_CACHE_SHOP_TTL, TimeUnit.SECONDS);
+        //店铺id布隆过滤器，拦截不存在的id
+        bloomFilterClient.register(CACHE_SHOP_KEY,
+                () -> listObjs(new QueryWrapper<Shop>().select("id"), o -> Long.valueOf(o.toString())));
+    }
 
     @Override
     public Result queryById(Long id) {
@@ -60,103 +97,17 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return Result.ok(shop);
     }
 
-    //线程池
-    public static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
-
-    //逻辑删除解决缓存击穿
+    //逻辑过期解决缓存击穿，重建时使用可重入锁，加锁和释放都在重建线程中完成
     public Shop queryWithLogicalExpire(Long id){
-        String key=CACHE_SHOP_KEY+id;
-        //1.从redis查询缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //2.判断是否存在
-        //3.不存在，直接返回
-        if (StrUtil.isBlank(shopJson)){
-            return null;
-        }
-        //4.存在，先把Json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(shopJson, RedisData.class);
-        JSONObject data = (JSONObject) redisData.getData();
-        Shop shop = JSONUtil.toBean(data, Shop.class);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        //5.判断是否过期
-        if (expireTime.isAfter(LocalDateTime.now())){
-            //未过期，直接返回店铺信息
-            return shop;
-        }
-        //过期，重建缓存
-        //获取互斥锁
-        String lockKey = LOCK_SHOP_KEY+id;
-        Boolean isLock = tryLock(lockKey);
-        //判断是否获取锁成功
-        if (isLock){
-            //成功，开启独立线程，实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                try {
-                    //缓存重建
-                    this.saveShop2Redis(id,20L);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }finally {
-                    //释放锁
-                    unLock(lockKey);
-                }
-            });
-        }
-        //返回过期商品信息
-        return shop;
+        return cacheClient
+                .queryWithLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, 20L, TimeUnit.SECONDS);
     }
 
 
-    //互斥锁解决缓存击穿
+    //互斥锁解决缓存击穿：同一节点内合并并发回源（single-flight），跨节点由Redis互斥锁保护，不再休眠重试
     public Shop queryWithMutex(Long id){
-        String key=CACHE_SHOP_KEY+id;
-        //1.从redis查询缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //2.判断是否存在
-        //3.存在，直接返回
-        if (StrUtil.isNotBlank(shopJson)){
-            Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-            return shop;
-        }
-        //判断命中的是否是空值
-        if (shopJson!=null){
-            //返回错误信息
-            return null;
-        }
-        Shop shop = null;
-        String lockKey =LOCK_SHOP_KEY+id;
-        try {
-            //缓存击穿1：实现缓存重建
-            //缓存击穿2：获取互斥锁
-            Boolean isLock = tryLock(lockKey);
-            //缓存击穿3：判断是否获取成功
-            //缓存击穿3：判断是否获取成功-失败：休眠并重试
-            if(!isLock){
-                Thread.sleep(50);
-                queryWithMutex(id);//递归
-            }
-            //缓存击穿3：判断是否获取成功-成功：写入Redis
-            //4.不存在，更具id查询数据库
-            shop = getById(id);
-            //模拟重建延迟
-            Thread.sleep(200);
-            //5，不存在，返回错误
-            if (shop == null){
-                //缓存穿透解决方案：在此处存入空值
-                stringRedisTemplate.opsForValue().set(key,"",CACHE_NULL_TTL,TimeUnit.MINUTES);
-                return null;
-            }
-            //6.存在，写入redis
-            stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(shop),CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        }finally {
-            //缓存击穿4：释放互斥锁
-            unLock(lockKey);
-        }
-
-        //返回
-        return shop;
+        return cacheClient
+                .queryWithPassThrough(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
 
@@ -203,14 +154,13 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     }
 
 
-    //获取锁
-    public Boolean tryLock(String key){
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", LOCK_SHOP_TTL, TimeUnit.SECONDS);
-        return BooleanUtil.isTrue(flag);
-    }
-    //释放锁
-    public void unLock(String key){
-        stringRedisTemplate.delete(key);
+    //新增店铺，同时加入布隆过滤器
+    @Override
+    public Result saveShop(Shop shop) {
+        save(shop);
+        bloomFilterClient.add(CACHE_SHOP_KEY, shop.getId());
+        addShopGeo(shop);
+        return Result.ok(shop.getId());
     }
 
     //店铺更新
@@ -222,9 +172,218 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         if (id==null){
             return Result.fail("店铺id不能为空");
         }
+        Shop old = getById(id);
+        if (old == null){
+            return Result.fail("店铺不存在！");
+        }
         updateById(shop);
-        //2.删除缓存
-        stringRedisTemplate.delete("CACHE_SHOP_KEY+id");
+        //2.删除缓存（Redis和本地缓存）
+        cacheClient.delete(CACHE_SHOP_KEY + id);
+        //3.同步坐标索引，类型变化时从原类型的GEO集合中移除
+        Shop merged = BeanUtil.copyProperties(old, Shop.class);
+        BeanUtil.copyProperties(shop, merged, CopyOptions.create().ignoreNullValue());
+        if (old.getTypeId() != null && !old.getTypeId().equals(merged.getTypeId())){
+            shopGeoIndex.remove(old.getTypeId(), id);
+            stringRedisTemplate.opsForGeo().remove(SHOP_GEO_KEY + old.getTypeId(), id.toString());
+        }
+        addShopGeo(merged);
         return Result.ok();
     }
+
+    @Override
+    public Result queryShopByType(Integer typeId, Integer current, Double x, Double y,
+                                  Double lastDistance, Long lastId) {
+        //1.没有坐标，按类型分页查询数据库
+        if (x == null || y == null){
+            Page<Shop> page = query()
+                    .eq("type_id", typeId)
+                    .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE));
+            return Result.ok(page.getRecords());
+        }
+        //游标分页：由本地索引直接定位上一页最后一条之后的店铺，不必再取出前面所有页
+        if (lastDistance != null){
+            GeoGridIndex.Hits hits = shopGeoIndex.nearbyAfter(typeId.longValue(), x, y, SHOP_GEO_RADIUS,
+                    lastDistance, lastId == null ? Long.MIN_VALUE : lastId, SystemConstants.DEFAULT_PAGE_SIZE);
+            return Result.ok(toShops(hits, ids -> cacheClient.queryBatch(CACHE_SHOP_KEY, ids, Shop.class,
+                    this::listByIds, CACHE_SHOP_TTL, TimeUnit.MINUTES)));
+        }
+        //2.计算分页参数
+        int from = (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
+        int end = current * SystemConstants.DEFAULT_PAGE_SIZE;
+        //3.查询附近的店铺，按距离升序 GEORADIUS key x y 5000 m WITHDIST ASC COUNT end
+        GeoResults<RedisGeoCommands.GeoLocation<String>> results;
+        try {
+            results = stringRedisTemplate.opsForGeo().radius(
+                    SHOP_GEO_KEY + typeId,
+                    new Circle(new Point(x, y), new Distance(SHOP_GEO_RADIUS, RedisGeoCommands.DistanceUnit.METERS)),
+                    RedisGeoCommands.GeoRadiusCommandArgs.newGeoRadiusArgs().includeDistance().sortAscending().limit(end));
+        } catch (DataAccessException e) {
+            //Redis不可用，改用本地索引
+            log.warn("查询附近店铺失败，使用本地索引", e);
+            return Result.ok(queryNearbyFromIndex(typeId, current, x, y));
+        }
+        if (results == null || results.getContent().isEmpty()){
+            //GEO集合不存在（Redis被清空且尚未重新导入），使用本地索引
+            if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(SHOP_GEO_KEY + typeId))){
+                log.warn("店铺坐标集合{}不存在，使用本地索引", SHOP_GEO_KEY + typeId);
+                return Result.ok(queryNearbyFromIndex(typeId, current, x, y));
+            }
+            return Result.ok(Collections.emptyList());
+        }
+        List<GeoResult<RedisGeoCommands.GeoLocation<String>>> list = results.getContent();
+        if (list.size() <= from){
+            //没有下一页
+            return Result.ok(Collections.emptyList());
+        }
+        //4.截取 from ~ end 的部分
+        List<Long> ids = new ArrayList<>(list.size() - from);
+        Map<Long, Double> distances = new HashMap<>(list.size() - from);
+        list.stream().skip(from).forEach(result -> {
+            Long shopId = Long.valueOf(result.getContent().getName());
+            ids.add(shopId);
+            distances.put(shopId, result.getDistance().getValue());
+        });
+        //5.批量查询店铺，结果与ids顺序一致
+        List<Shop> shops = cacheClient.queryBatch(CACHE_SHOP_KEY, ids, Shop.class,
+                this::listByIds, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        //6.设置距离，复制一份，不修改本地缓存中的对象
+        List<Shop> records = new ArrayList<>(shops.size());
+        for (Shop shop : shops) {
+            Shop record = BeanUtil.copyProperties(shop, Shop.class);
+            record.setDistance(distances.get(shop.getId()));
+            records.add(record);
+        }
+        return Result.ok(records);
+    }
+
+    /**
+     * 使用本地网格索引查询附近店铺，店铺信息直接查询数据库，不依赖Redis
+     */
+    private List<Shop> queryNearbyFromIndex(Integer typeId, Integer current, Double x, Double y) {
+        int from = (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
+        GeoGridIndex.Hits hits = shopGeoIndex.nearby(
+                typeId.longValue(), x, y, SHOP_GEO_RADIUS, from, SystemConstants.DEFAULT_PAGE_SIZE);
+        return toShops(hits, this::listByIds);
+    }
+
+    //按索引结果的顺序组装店铺并设置距离，复制一份，不修改缓存中的对象
+    private List<Shop> toShops(GeoGridIndex.Hits hits, Function<List<Long>, List<Shop>> loader) {
+        if (hits.size() == 0){
+            return Collections.emptyList();
+        }
+        List<Long> ids = new ArrayList<>(hits.size());
+        for (int i = 0; i < hits.size(); i++) {
+            ids.add(hits.id(i));
+        }
+        Map<Long, Shop> shops = loader.apply(ids).stream().collect(Collectors.toMap(Shop::getId, shop -> shop));
+        List<Shop> records = new ArrayList<>(hits.size());
+        for (int i = 0; i < hits.size(); i++) {
+            Shop shop = shops.get(hits.id(i));
+            if (shop != null){
+                Shop record = BeanUtil.copyProperties(shop, Shop.class);
+                record.setDistance(hits.distance(i));
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    //启动时及定时从数据库全量重建本地索引和Redis GEO集合，新增和修改店铺时增量更新
+    @Scheduled(initialDelay = 0, fixedDelay = SHOP_GEO_INDEX_REBUILD_INTERVAL)
+    public void rebuildGeoIndex() {
+        //先记录序号和时间，查询期间新增或修改的店铺不会被旧数据覆盖
+        long since = shopGeoIndex.sequence();
+        LocalDateTime startedAt = LocalDateTime.now();
+        Map<Long, List<Shop>> shops;
+        try {
+            shops = listShopGeoByType();
+        } catch (Exception e) {
+            log.error("查询店铺坐标失败", e);
+            return;
+        }
+        //已经没有店铺的类型清空，不保留旧数据
+        Set<Long> removedTypes = new HashSet<>(shopGeoIndex.groups());
+        removedTypes.removeAll(shops.keySet());
+        shops.forEach((typeId, list) -> {
+            Map<Long, double[]> points = new HashMap<>(list.size());
+            for (Shop shop : list) {
+                points.put(shop.getId(), new double[]{shop.getX(), shop.getY()});
+            }
+            shopGeoIndex.load(typeId, points, since);
+        });
+        for (Long typeId : removedTypes) {
+            shopGeoIndex.load(typeId, Collections.emptyMap(), since);
+        }
+        //Redis重启或数据被清空后，GEO集合在这里恢复
+        try {
+            loadShopGeo(shops, removedTypes, startedAt);
+        } catch (Exception e) {
+            log.error("导入店铺坐标到Redis失败", e);
+        }
+    }
+
+    private Map<Long, List<Shop>> listShopGeoByType() {
+        List<Shop> shops = query().select("id", "type_id", "x", "y").list();
+        return shops.stream()
+                .filter(shop -> shop.getTypeId() != null && shop.getX() != null && shop.getY() != null)
+                .collect(Collectors.groupingBy(Shop::getTypeId));
+    }
+
+    //按类型把全部店铺坐标导入 shop:geo:{typeId}
+    @Override
+    public void loadShopGeo() {
+        LocalDateTime startedAt = LocalDateTime.now();
+        Map<Long, List<Shop>> shops = listShopGeoByType();
+        Set<Long> removedTypes = new HashSet<>(shopGeoIndex.groups());
+        removedTypes.removeAll(shops.keySet());
+        loadShopGeo(shops, removedTypes, startedAt);
+    }
+
+    /**
+     * 每个类型先导入临时key，再RENAME覆盖正式key：已删除或更换类型的店铺不会残留，查询也不会读到导入一半的集合
+     * 导入期间其他请求写入正式key的更新会被覆盖，RENAME之后按update_time重放这段时间更新过的店铺
+     */
+    private void loadShopGeo(Map<Long, List<Shop>> shops, Set<Long> removedTypes, LocalDateTime startedAt) {
+        //多个节点可能同时重建，临时key按本次重建区分
+        String token = UUID.randomUUID().toString(true);
+        shops.forEach((typeId, list) -> {
+            List<RedisGeoCommands.GeoLocation<String>> locations = new ArrayList<>(list.size());
+            for (Shop shop : list) {
+                locations.add(new RedisGeoCommands.GeoLocation<>(
+                        shop.getId().toString(), new Point(shop.getX(), shop.getY())));
+            }
+            String key = SHOP_GEO_KEY + typeId;
+            String tmpKey = key + SHOP_GEO_REBUILD_SUFFIX + token;
+            //GEOADD tmpKey x y member ...
+            stringRedisTemplate.opsForGeo().add(tmpKey, locations);
+            stringRedisTemplate.rename(tmpKey, key);
+        });
+        for (Long typeId : removedTypes) {
+            stringRedisTemplate.delete(SHOP_GEO_KEY + typeId);
+        }
+        //重放导入期间更新过的店铺，多减去一段时间容忍应用与数据库的时钟误差
+        List<Shop> updated = query().select("id", "type_id", "x", "y")
+                .ge("update_time", startedAt.minusSeconds(SHOP_GEO_REPLAY_MARGIN)).list();
+        for (Shop shop : updated) {
+            if (shop.getTypeId() == null || shop.getX() == null || shop.getY() == null){
+                continue;
+            }
+            for (Long typeId : shops.keySet()) {
+                if (!typeId.equals(shop.getTypeId())){
+                    stringRedisTemplate.opsForGeo().remove(SHOP_GEO_KEY + typeId, shop.getId().toString());
+                }
+            }
+            stringRedisTemplate.opsForGeo().add(SHOP_GEO_KEY + shop.getTypeId(),
+                    new Point(shop.getX(), shop.getY()), shop.getId().toString());
+        }
+    }
+
+    private void addShopGeo(Shop shop){
+        if (shop.getTypeId() == null || shop.getX() == null || shop.getY() == null){
+            return;
+        }
+        shopGeoIndex.put(shop.getTypeId(), shop.getId(), shop.getX(), shop.getY());
+        stringRedisTemplate.opsForGeo().add(SHOP_GEO_KEY + shop.getTypeId(),
+                new Point(shop.getX(), shop.getY()), shop.getId().toString());
+    }
 }
@@ -8,11 +8,16 @@ import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheClient;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -25,16 +30,30 @@ import java.util.List;
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
     @Resource
     private  StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private CacheClient cacheClient;
+
+    @PostConstruct
+    private void init(){
+        //店铺类型几乎不变，开启本地缓存
+        cacheClient.enableLocalCache(CACHE_SHOP_TYPE_KEY, LOCAL_CACHE_SHOP_TYPE_SIZE, LOCAL_CACHE_SHOP_TYPE_TTL, TimeUnit.SECONDS);
+    }
 
     @Override
     public Result queryTypeList() {
+        //先查本地缓存
+        List<ShopType> localList = cacheClient.getLocal(CACHE_SHOP_TYPE_KEY);
+        if (localList != null){
+            return Result.ok(localList);
+        }
+        long version = cacheClient.localVersion(CACHE_SHOP_TYPE_KEY);
         //从redid查询缓存
-        String shopType = stringRedisTemplate.opsForValue().get("shop:type");
+        String shopType = stringRedisTemplate.opsForValue().get(CACHE_SHOP_TYPE_KEY);
         //判断是否存在
         //存在返回
         if (StrUtil.isNotBlank(shopType)){
             List<ShopType> typeList = JSONUtil.toList(shopType, ShopType.class);
-            System.out.println(typeList);
+            cacheClient.putLocal(CACHE_SHOP_TYPE_KEY, typeList, version);
             return Result.ok(typeList);
         }
         //不存在查询数据库
@@ -44,7 +63,8 @@ public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> i
             return Result.fail("列表信息不存在");
         }
         //查询到的数据保存redis
-        stringRedisTemplate.opsForValue().set("shop:type",JSONUtil.toJsonStr(typeList));
+        stringRedisTemplate.opsForValue().set(CACHE_SHOP_TYPE_KEY,JSONUtil.toJsonStr(typeList));
+        cacheClient.putLocal(CACHE_SHOP_TYPE_KEY, typeList, version);
         //返回
 
         return Result.ok(typeList);
@@ -1,7 +1,7 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.collection.CollectionUtil;
-import cn.hutool.json.JSONUtil;
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.net.NetUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
@@ -9,23 +9,53 @@ import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.LockMetrics;
 import com.hmdp.utils.RedisWorker;
-import com.hmdp.utils.SimpleRedisLock;
+import com.hmdp.utils.SoldOutRegistry;
 import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 
-import java.time.LocalDateTime;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.*;
+import static com.hmdp.utils.SystemConstants.*;
 
 /**
  * <p>
@@ -35,6 +65,7 @@ import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
  * @author myw
  * @since 2023
  */
+@Slf4j
 @Service
 public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService {
     @Resource
@@ -45,6 +76,13 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private RedisWorker redisWorker;
     @Resource
     private RedissonClient redissonClient;
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+    @Resource
+    private LockMetrics lockMetrics;
+    //代理对象，保证异步线程中调用createVoucherOrder时事务生效
+    @Resource
+    private IVoucherOrderService voucherOrderService;
 
     public static final DefaultRedisScript<Long> SEKILL_SCRIPT;
     static {
@@ -52,91 +90,546 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         SEKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
         SEKILL_SCRIPT.setResultType(Long.class);
     }
+    public static final DefaultRedisScript<Long> SECKILL_SHARD_SCRIPT;
+    static {
+        SECKILL_SHARD_SCRIPT=new DefaultRedisScript<>();
+        SECKILL_SHARD_SCRIPT.setLocation(new ClassPathResource("seckillShard.lua"));
+        SECKILL_SHARD_SCRIPT.setResultType(Long.class);
+    }
+    public static final DefaultRedisScript<Long> SECKILL_RESERVE_SCRIPT;
+    static {
+        SECKILL_RESERVE_SCRIPT=new DefaultRedisScript<>();
+        SECKILL_RESERVE_SCRIPT.setLocation(new ClassPathResource("seckillReserve.lua"));
+        SECKILL_RESERVE_SCRIPT.setResultType(Long.class);
+    }
+    public static final DefaultRedisScript<Long> SECKILL_COMMIT_SCRIPT;
+    static {
+        SECKILL_COMMIT_SCRIPT=new DefaultRedisScript<>();
+        SECKILL_COMMIT_SCRIPT.setLocation(new ClassPathResource("seckillCommit.lua"));
+        SECKILL_COMMIT_SCRIPT.setResultType(Long.class);
+    }
+    //优惠券id -> 库存分片数，1表示未分片
+    private final Map<Long, Integer> stockShards = new ConcurrentHashMap<>();
+    //优惠券id -> 秒杀信息，创建后只读，本地缓存避免每次下单查询数据库
+    private final Map<Long, SeckillMeta> seckillMetas = new ConcurrentHashMap<>();
 
-//    @Override
-//    public Result seckillVoucher(Long voucherId) {
-//        //1.执行lua脚本
-//        Long userId = UserHolder.getUser().getId();
-//        Long result = stringRedisTemplate.execute(
-//                SEKILL_SCRIPT, Collections.emptyList(), voucherId.toString(), userId.toString());
-//        //2.判断是否有购买资格（为0）
-//        int r = result.intValue();
-//        if (r != 0){
-//            return Result.fail(r == 1 ? "库存不足":"不能重复下单");
-//        }
-//        //有购买资格，把下单信息存入阻塞队列
-//        long orderId = redisWorker.nextId("order");
-//        //TODO 保存阻塞队列
-//        //3.返回订单id
-//        return Result.ok(orderId);
-//    }
+    //下单消费线程池，每个线程是消费者组中的一个消费者
+    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newFixedThreadPool(SECKILL_ORDER_CONSUMERS);
 
-    @Override
-    public Result seckillVoucher(Long voucherId) {
-        //1.查询优惠券
-        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
-        //2.判断秒杀是否开始
-        if (voucher.getBeginTime().isAfter(LocalDateTime.now())){
-            return Result.fail("秒杀尚未开始");
+    @PostConstruct
+    private void init(){
+        //创建消费者组（已存在则忽略）
+        createConsumerGroup();
+        //消费者名称与主机绑定，重启后可以继续处理自己的pending-list
+        String host = NetUtil.getLocalHostName();
+        for (int i = 0; i < SECKILL_ORDER_CONSUMERS; i++) {
+            SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler(host + "-" + i));
         }
-      if (voucher.getEndTime().isBefore(LocalDateTime.now())){
-          return Result.fail("秒杀已结束");
-      }
-        //判断库存是否充足
-        if (voucher.getStock()<1){
-            return Result.fail("库存不足");
+    }
+
+    @PreDestroy
+    private void destroy(){
+        SECKILL_ORDER_EXECUTOR.shutdownNow();
+    }
+
+    private void createConsumerGroup(){
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.xGroupCreate(
+                    SECKILL_ORDER_STREAM.getBytes(StandardCharsets.UTF_8), SECKILL_ORDER_GROUP, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            //BUSYGROUP：消费者组已存在
+            log.debug("消费者组{}已存在", SECKILL_ORDER_GROUP);
         }
-        //1.创建锁对象
-        Long userId = UserHolder.getUser().getId();
-        //SimpleRedisLock lock = new SimpleRedisLock("order" + userId, stringRedisTemplate);
-        //改用Redisson获取锁对象
-        RLock lock = redissonClient.getLock("lock:order" + userId);
-        //2.获取锁
+    }
+
+    //从消息队列stream.orders中获取订单并写入数据库，处理成功后ACK
+    private class VoucherOrderHandler implements Runnable {
+        private final String consumerName;
+
+        private VoucherOrderHandler(String consumerName) {
+            this.consumerName = consumerName;
+        }
+
+        @Override
+        public void run() {
+            //启动时先处理上次未确认的消息
+            claimIdlePendingList();
+            handlePendingList();
+            long lastClaimAt = System.currentTimeMillis();
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    //定时认领其他消费者长时间未确认的消息，节点宕机后不必等到重启
+                    if (System.currentTimeMillis() - lastClaimAt >= SECKILL_ORDER_CLAIM_INTERVAL){
+                        lastClaimAt = System.currentTimeMillis();
+                        claimIdlePendingList();
+                        handlePendingList();
+                    }
+                    //1.攒批获取消息队列中的订单信息
+                    List<MapRecord<String, Object, Object>> records = readBatch();
+                    //2.判断消息是否获取成功，失败说明没有消息，空闲时顺便重试pending-list
+                    if (records.isEmpty()){
+                        handlePendingList();
+                        continue;
+                    }
+                    //3.批量创建订单并ACK
+                    handleBatch(records);
+                } catch (Exception e) {
+                    if (Thread.currentThread().isInterrupted() || e.getCause() instanceof InterruptedException){
+                        break;
+                    }
+                    log.error("处理订单异常", e);
+                    handlePendingList();
+                }
+            }
+        }
+
+        //最多攒SECKILL_ORDER_BATCH_SIZE条，或收到第一条消息后最多再等SECKILL_ORDER_BATCH_WAIT毫秒
+        private List<MapRecord<String, Object, Object>> readBatch() {
+            List<MapRecord<String, Object, Object>> records = new ArrayList<>(SECKILL_ORDER_BATCH_SIZE);
+            //XREADGROUP GROUP g1 c1 COUNT n BLOCK 2000 STREAMS stream.orders >
+            List<MapRecord<String, Object, Object>> list = read(SECKILL_ORDER_BATCH_SIZE, Duration.ofSeconds(2));
+            if (list == null || list.isEmpty()){
+                return records;
+            }
+            records.addAll(list);
+            long deadline = System.currentTimeMillis() + SECKILL_ORDER_BATCH_WAIT;
+            while (records.size() < SECKILL_ORDER_BATCH_SIZE) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0){
+                    break;
+                }
+                list = read(SECKILL_ORDER_BATCH_SIZE - records.size(), Duration.ofMillis(remaining));
+                if (list == null || list.isEmpty()){
+                    break;
+                }
+                records.addAll(list);
+            }
+            return records;
+        }
+
+        private List<MapRecord<String, Object, Object>> read(int count, Duration block) {
+            return read(StreamReadOptions.empty().count(count).block(block), ReadOffset.lastConsumed());
+        }
+
+        //read的参数是泛型可变参数，只读取一个stream，创建单元素数组是安全的
+        @SuppressWarnings("unchecked")
+        private List<MapRecord<String, Object, Object>> read(StreamReadOptions options, ReadOffset offset) {
+            return stringRedisTemplate.opsForStream().read(
+                    Consumer.from(SECKILL_ORDER_GROUP, consumerName),
+                    options,
+                    StreamOffset.create(SECKILL_ORDER_STREAM, offset)
+            );
+        }
+
+        //一个事务内批量写入订单，失败时退化为逐条处理，未成功的消息留在pending-list
+        private void handleBatch(List<MapRecord<String, Object, Object>> records) {
+            List<VoucherOrder> orders = new ArrayList<>(records.size());
+            for (MapRecord<String, Object, Object> record : records) {
+                orders.add(toVoucherOrder(record));
+            }
+            try {
+                voucherOrderService.createVoucherOrders(orders);
+                saveOrderStatus(orders, ORDER_STATUS_PERSISTED);
+                RecordId[] ids = records.stream().map(MapRecord::getId).toArray(RecordId[]::new);
+                stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, ids);
+            } catch (Exception e) {
+                log.error("批量创建订单失败，改为逐条处理", e);
+                for (int i = 0; i < records.size(); i++) {
+                    try {
+                        handleVoucherOrder(orders.get(i));
+                        stringRedisTemplate.opsForStream()
+                                .acknowledge(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, records.get(i).getId());
+                    } catch (Exception ex) {
+                        log.error("处理订单异常", ex);
+                    }
+                }
+            }
+        }
+
+        //处理pending-list中已消费但未确认的消息，失败的消息跳过，不阻塞后面的消息
+        private void handlePendingList() {
+            String lastId = "0";
+            while (!Thread.currentThread().isInterrupted()) {
+                MapRecord<String, Object, Object> record;
+                try {
+                    //1.获取pending-list中lastId之后的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 STREAMS stream.orders lastId
+                    List<MapRecord<String, Object, Object>> list =
+                            read(StreamReadOptions.empty().count(1), ReadOffset.from(lastId));
+                    //2.为空说明pending-list中没有更多异常消息，结束
+                    if (list == null || list.isEmpty()){
+                        break;
+                    }
+                    record = list.get(0);
+                } catch (Exception e) {
+                    log.error("读取pending-list异常", e);
+                    break;
+                }
+                lastId = record.getId().getValue();
+                try {
+                    handleVoucherOrder(toVoucherOrder(record));
+                    stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, record.getId());
+                } catch (Exception e) {
+                    //3.投递次数未达上限的留在pending-list中，下次再处理；达到上限的转入死信队列
+                    log.error("处理pending-list订单异常，id：{}", lastId, e);
+                    deadLetterIfExhausted(record);
+                }
+            }
+        }
+
+        //XPENDING查询投递次数，超过SECKILL_ORDER_MAX_DELIVERIES次后标记订单失败、写入死信队列并ACK
+        private void deadLetterIfExhausted(MapRecord<String, Object, Object> record) {
+            try {
+                String id = record.getId().getValue();
+                PendingMessages pending = stringRedisTemplate.opsForStream().pending(
+                        SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, Range.closed(id, id), 1L);
+                if (pending.isEmpty() || pending.get(0).getTotalDeliveryCount() < SECKILL_ORDER_MAX_DELIVERIES){
+                    return;
+                }
+                Map<String, String> values = new HashMap<>();
+                record.getValue().forEach((k, v) -> values.put(k.toString(), v.toString()));
+                values.put("sourceId", id);
+                stringRedisTemplate.opsForStream().add(
+                        StreamRecords.newRecord().in(SECKILL_ORDER_DEAD_LETTER_STREAM).ofMap(values));
+                String orderId = values.get("id");
+                String userId = values.get("userId");
+                if (orderId != null && userId != null){
+                    String statusKey = SECKILL_ORDER_STATUS_KEY + orderId;
+                    stringRedisTemplate.opsForHash().putAll(statusKey, toOrderStatus(ORDER_STATUS_FAILED, Long.valueOf(userId)));
+                    stringRedisTemplate.expire(statusKey, SECKILL_ORDER_STATUS_TTL, TimeUnit.SECONDS);
+                }
+                stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, record.getId());
+                log.error("订单消息{}已投递{}次仍处理失败，转入死信队列", id, pending.get(0).getTotalDeliveryCount());
+            } catch (Exception e) {
+                log.error("订单消息转入死信队列失败", e);
+            }
+        }
+
+        //认领其他消费者（例如已宕机的节点）长时间未确认的消息
+        private void claimIdlePendingList() {
+            try {
+                PendingMessages pending = stringRedisTemplate.opsForStream().pending(
+                        SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, Range.unbounded(), SECKILL_ORDER_CLAIM_COUNT);
+                List<RecordId> ids = new ArrayList<>();
+                for (PendingMessage message : pending) {
+                    if (!consumerName.equals(message.getConsumerName())
+                            && message.getElapsedTimeSinceLastDelivery().getSeconds() >= SECKILL_ORDER_CLAIM_IDLE){
+                        ids.add(message.getId());
+                    }
+                }
+                if (ids.isEmpty()){
+                    return;
+                }
+                stringRedisTemplate.execute((RedisCallback<List<RecordId>>) connection -> connection.xClaimJustId(
+                        SECKILL_ORDER_STREAM.getBytes(StandardCharsets.UTF_8), SECKILL_ORDER_GROUP, consumerName,
+                        RedisStreamCommands.XClaimOptions.minIdle(Duration.ofSeconds(SECKILL_ORDER_CLAIM_IDLE))
+                                .ids(ids.toArray(new RecordId[0]))));
+                log.info("消费者{}认领了{}条未确认的订单消息", consumerName, ids.size());
+            } catch (Exception e) {
+                log.error("认领pending-list消息异常", e);
+            }
+        }
+    }
+
+    private VoucherOrder toVoucherOrder(MapRecord<String, Object, Object> record) {
+        Map<Object, Object> values = record.getValue();
+        return BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
+    }
+
+    //批量写入订单状态，客户端轮询时优先读取
+    private void saveOrderStatus(List<VoucherOrder> orders, String status) {
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (VoucherOrder order : orders) {
+                    String key = SECKILL_ORDER_STATUS_KEY + order.getId();
+                    conn.hMSet(key, toOrderStatus(status, order.getUserId()));
+                    conn.expire(key, SECKILL_ORDER_STATUS_TTL);
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            //状态只是缓存，写入失败时查询会回退到数据库
+            log.error("写入订单状态失败", e);
+        }
+    }
+
+    //订单状态hash：状态和下单用户，查询时只返回本人的订单
+    private static Map<String, String> toOrderStatus(String status, Long userId) {
+        Map<String, String> hash = new HashMap<>(2);
+        hash.put("status", status);
+        hash.put("userId", userId.toString());
+        return hash;
+    }
+
+    private void handleVoucherOrder(VoucherOrder voucherOrder) {
+        //兜底：Lua脚本已保证一人一单，这里加锁防止同一用户的订单被并发处理
+        Long userId = voucherOrder.getUserId();
+        String lockKey = "lock:order" + userId;
+        RLock lock = redissonClient.getLock(lockKey);
+        long start = System.nanoTime();
         boolean isLock = lock.tryLock();
+        long acquiredAt = System.nanoTime();
+        lockMetrics.recordAcquire(lockKey, acquiredAt - start, isLock);
         if (!isLock){
-            //获取失败
-            return Result.fail("一人限购一单");
-
+            //该用户的另一个订单正在处理，抛出异常让消息留在pending-list中稍后重试
+            throw new IllegalStateException("用户" + userId + "的订单正在处理中");
         }
         try {
-            return creatVoucherOrder(voucherId);
+            boolean success = voucherOrderService.createVoucherOrder(voucherOrder);
+            saveOrderStatus(Collections.singletonList(voucherOrder),
+                    success ? ORDER_STATUS_PERSISTED : ORDER_STATUS_FAILED);
         } finally {
             //释放锁
             lock.unlock();
+            lockMetrics.recordHold(lockKey, System.nanoTime() - acquiredAt);
+        }
+    }
+
+    @Override
+    public Result seckillVoucher(Long voucherId) {
+        //本地已标记售罄，直接拒绝
+        if (soldOutRegistry.isSoldOut(voucherId)){
+            return Result.fail("库存不足");
         }
+        //校验秒杀时间
+        long now = System.currentTimeMillis();
+        SeckillMeta meta = seckillMetas.get(voucherId);
+        if (meta == null || meta.expireAt < now){
+            //不在computeIfAbsent中加载，避免在map的锁内做网络IO
+            meta = loadSeckillMeta(voucherId, now);
+            //不存在的id数量不受控制，超出上限后只依赖Redis中的空值标记
+            if (!meta.missing || seckillMetas.size() < SECKILL_META_NULL_SIZE){
+                seckillMetas.put(voucherId, meta);
+            } else {
+                seckillMetas.remove(voucherId);
+            }
+        }
+        if (meta.missing){
+            return Result.fail("优惠券不存在");
+        }
+        if (now < meta.beginTime){
+            return Result.fail("秒杀尚未开始");
+        }
+        if (now > meta.endTime){
+            return Result.fail("秒杀已结束");
+        }
+        Long userId = UserHolder.getUser().getId();
+        long orderId = redisWorker.nextId("order");
+        //热门优惠券的库存被拆分为多个分片
+        int shards = stockShards.computeIfAbsent(voucherId, this::loadStockShards);
+        if (shards > 1){
+            return seckillWithShards(voucherId, userId, orderId, shards);
+        }
+        //1.执行lua脚本：原子判断秒杀时间、库存和一人一单，预扣库存并把订单发送到消息队列
+        Long result = stringRedisTemplate.execute(SEKILL_SCRIPT, Collections.emptyList(),
+                voucherId.toString(), userId.toString(), String.valueOf(orderId), String.valueOf(now),
+                SECKILL_ORDER_STATUS_TTL.toString());
+        //2.判断是否有购买资格（为0）
+        int r = result.intValue();
+        if (r == 1){
+            //库存不足，标记售罄并广播
+            soldOutRegistry.markSoldOut(voucherId);
+            return Result.fail("库存不足");
+        }
+        if (r == 3){
+            return Result.fail("秒杀尚未开始");
+        }
+        if (r == 4){
+            return Result.fail("秒杀已结束");
+        }
+        if (r == 5){
+            log.warn("优惠券{}的库存未加载到Redis", voucherId);
+            return Result.fail("库存信息未加载，请稍后重试");
+        }
+        if (r != 0){
+            return Result.fail("不能重复下单");
+        }
+        //3.返回订单id
+        return Result.ok(orderId);
+    }
+
+    //先读Redis中的秒杀信息，不存在时（例如历史数据）查询一次数据库并回写Redis
+    private SeckillMeta loadSeckillMeta(Long voucherId, long now) {
+        String key = SECKILL_VOUCHER_KEY + voucherId;
+        Map<Object, Object> hash = stringRedisTemplate.opsForHash().entries(key);
+        if (hash.isEmpty()){
+            //其他节点已确认不存在，不再查询数据库
+            String nullKey = SECKILL_VOUCHER_NULL_KEY + voucherId;
+            if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(nullKey))){
+                return SeckillMeta.missing(now);
+            }
+            SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+            if (voucher == null){
+                //不存在的优惠券只做短时间缓存，之后创建的同id优惠券仍然可以下单
+                stringRedisTemplate.opsForValue().set(nullKey, "", SECKILL_VOUCHER_NULL_TTL, TimeUnit.SECONDS);
+                return SeckillMeta.missing(now);
+            }
+            Map<String, String> created = VoucherServiceImpl.toSeckillHash(voucher);
+            stringRedisTemplate.opsForHash().putAll(key, created);
+            hash = new HashMap<>(created);
+        }
+        return new SeckillMeta(Long.parseLong(hash.get("beginTime").toString()),
+                Long.parseLong(hash.get("endTime").toString()), false, Long.MAX_VALUE);
+    }
+
+    //秒杀时间窗口（毫秒时间戳）
+    private static class SeckillMeta {
+        private final long beginTime;
+        private final long endTime;
+        //优惠券不存在
+        private final boolean missing;
+        //本地缓存的过期时间，只有不存在的优惠券会过期
+        private final long expireAt;
+
+        private SeckillMeta(long beginTime, long endTime, boolean missing, long expireAt) {
+            this.beginTime = beginTime;
+            this.endTime = endTime;
+            this.missing = missing;
+            this.expireAt = expireAt;
+        }
+
+        private static SeckillMeta missing(long now) {
+            return new SeckillMeta(0, 0, true, now + SECKILL_META_NULL_TTL);
+        }
+    }
+
+    private int loadStockShards(Long voucherId) {
+        String shards = stringRedisTemplate.opsForValue().get(SECKILL_SHARDS_KEY + voucherId);
+        return shards == null ? 1 : Integer.parseInt(shards);
+    }
+
+    /**
+     * 分片库存秒杀：每个分片是独立的key，可以分布在Redis Cluster的不同节点上
+     * 1.校验秒杀时间，SADD seckill:order:{voucherId} 占位保证一人一单，同时写入预留记录
+     * 2.按用户哈希选择分片扣减，分片为空时依次尝试其他分片，扣减成功后在预留记录中记下分片
+     * 3.发送订单消息并删除预留记录；中途失败或节点宕机时，由对账任务释放超时的预留记录
+     */
+    private Result seckillWithShards(Long voucherId, Long userId, long orderId, int shards) {
+        String orderKey = SECKILL_ORDER_KEY + voucherId;
+        String order = String.valueOf(orderId);
+        long now = System.currentTimeMillis();
+        Long reserved = stringRedisTemplate.execute(SECKILL_RESERVE_SCRIPT,
+                Arrays.asList(SECKILL_VOUCHER_KEY + voucherId, orderKey, SECKILL_RESERVE_KEY),
+                userId.toString(), order, String.valueOf(now),
+                VoucherServiceImpl.toReservation(voucherId, userId, -1, now));
+        int r = reserved.intValue();
+        if (r == 3){
+            return Result.fail("秒杀尚未开始");
+        }
+        if (r == 4){
+            return Result.fail("秒杀已结束");
+        }
+        if (r != 0){
+            return Result.fail("不能重复下单");
+        }
+        int shard = -1;
+        int start = (int) (userId % shards);
+        for (int i = 0; i < shards; i++) {
+            String key = SECKILL_STOCK_KEY + voucherId + ":" + (start + i) % shards;
+            Long left = stringRedisTemplate.execute(SECKILL_SHARD_SCRIPT, Collections.singletonList(key));
+            if (left != null && left >= 0){
+                shard = (start + i) % shards;
+                break;
+            }
+        }
+        if (shard < 0){
+            //所有分片都已售罄；分片可能已被合并，下次请求重新读取分片数
+            VoucherServiceImpl.releaseReservation(stringRedisTemplate, order,
+                    VoucherServiceImpl.toReservation(voucherId, userId, -1, now));
+            stockShards.remove(voucherId);
+            soldOutRegistry.markSoldOut(voucherId);
+            return Result.fail("库存不足");
+        }
+        //记下扣减的分片，宕机时对账任务据此归还库存；在扣减与记录之间宕机只会少卖，不会超卖
+        String reservation = VoucherServiceImpl.toReservation(voucherId, userId, shard, now);
+        try {
+            stringRedisTemplate.opsForHash().put(SECKILL_RESERVE_KEY, order, reservation);
+            Long committed = stringRedisTemplate.execute(SECKILL_COMMIT_SCRIPT,
+                    Arrays.asList(SECKILL_RESERVE_KEY, SECKILL_ORDER_STATUS_KEY + orderId),
+                    order, userId.toString(), voucherId.toString(), SECKILL_ORDER_STATUS_TTL.toString());
+            if (committed == null || committed != 0){
+                //预留记录已超时被对账任务释放
+                return Result.fail("下单失败，请重试");
+            }
+        } catch (RuntimeException e) {
+            VoucherServiceImpl.releaseReservation(stringRedisTemplate, order, reservation);
+            throw e;
+        }
+        return Result.ok(orderId);
+    }
+
+    @Override
+    public Result queryOrderStatus(Long orderId) {
+        Long userId = UserHolder.getUser().getId();
+        //1.查询Redis中的订单状态，只能查询本人的订单
+        Map<Object, Object> status = stringRedisTemplate.opsForHash().entries(SECKILL_ORDER_STATUS_KEY + orderId);
+        if (!status.isEmpty()){
+            if (!userId.toString().equals(status.get("userId"))){
+                return Result.fail("订单不存在");
+            }
+            return Result.ok(status.get("status"));
+        }
+        //2.状态已过期或未写入，查询数据库
+        VoucherOrder order = getById(orderId);
+        if (order == null || !order.getUserId().equals(userId)){
+            return Result.fail("订单不存在");
+        }
+        return Result.ok(ORDER_STATUS_PERSISTED);
     }
+
+    @Override
     @Transactional
-    public Result creatVoucherOrder(Long voucherId) {
-        //优化：一人一单
-        //查询订单
-        Long id = UserHolder.getUser().getId();
-        int count = query().eq("user_id", id).eq("voucher_id", voucherId).count();
+    public boolean createVoucherOrder(VoucherOrder voucherOrder) {
+        //一人一单
+        Long userId = voucherOrder.getUserId();
+        Long voucherId = voucherOrder.getVoucherId();
+        int count = query().eq("user_id", userId).eq("voucher_id", voucherId).count();
         //判断是否存在
         if (count>0){
-            return Result.fail("限购一单");
+            log.error("用户{}已经购买过优惠券{}", userId, voucherId);
+            //消息重复投递时，已存在的就是这个订单
+            return getById(voucherOrder.getId()) != null;
         }
         //扣减库存
         boolean success = seckillVoucherService
                 .update().setSql("stock = stock-1")
                 .eq("voucher_id", voucherId)
                 .gt("stock",0)
-                //.eq("stock",voucher.getStock())//乐观锁：cas 通过库存来判断是否被修改过 用于数据修改时
                 .update();
         if (!success){
-            return Result.fail("库存不足");
+            log.error("优惠券{}库存不足", voucherId);
+            return false;
         }
         //创建订单
-        VoucherOrder voucherOrder = new VoucherOrder();
-        //订单id
-        long orderId = redisWorker.nextId("order");
-        voucherOrder.setVoucherId(voucherId);
-        //用户id
-        Long userId = UserHolder.getUser().getId();
-        voucherOrder.setUserId(userId);
-        //代金券id
-        voucherOrder.setId(orderId);
-        save(voucherOrder);
-        //返回订单id
-        return Result.ok(orderId);
+        return save(voucherOrder);
+    }
+
+    @Override
+    @Transactional
+    public void createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        //消息至少投递一次，过滤掉已经写入过的订单
+        List<Long> ids = voucherOrders.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+        Set<Long> existIds = listByIds(ids).stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+        List<VoucherOrder> orders = voucherOrders.stream()
+                .filter(order -> !existIds.contains(order.getId()))
+                .collect(Collectors.toList());
+        if (orders.isEmpty()){
+            return;
+        }
+        //按优惠券聚合扣减库存：每张优惠券一条 stock = stock - k
+        Map<Long, Long> counts = orders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()));
+        counts.forEach((voucherId, count) -> {
+            boolean success = seckillVoucherService
+                    .update().setSql("stock = stock - " + count)
+                    .eq("voucher_id", voucherId)
+                    .ge("stock", count)
+                    .update();
+            if (!success){
+                throw new IllegalStateException("优惠券" + voucherId + "库存不足" + count);
+            }
+        });
+        //一条多行INSERT写入全部订单
+        getBaseMapper().insertBatch(orders);
     }
 }
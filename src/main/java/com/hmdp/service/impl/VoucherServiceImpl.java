@@ -7,14 +7,26 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillLimiter;
+import com.hmdp.utils.SoldOutRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -24,6 +36,7 @@ import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> implements IVoucherService {
 
@@ -31,6 +44,17 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     private ISeckillVoucherService seckillVoucherService;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+    @Resource
+    private SeckillLimiter seckillLimiter;
+
+    public static final DefaultRedisScript<Long> SECKILL_RELEASE_SCRIPT;
+    static {
+        SECKILL_RELEASE_SCRIPT=new DefaultRedisScript<>();
+        SECKILL_RELEASE_SCRIPT.setLocation(new ClassPathResource("seckillRelease.lua"));
+        SECKILL_RELEASE_SCRIPT.setResultType(Long.class);
+    }
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -52,8 +76,138 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
+        //秒杀信息写入Redis，下单时不再查询数据库
+        stringRedisTemplate.opsForHash().putAll(SECKILL_VOUCHER_KEY + voucher.getId(), toSeckillHash(seckillVoucher));
+        stringRedisTemplate.delete(SECKILL_VOUCHER_NULL_KEY + voucher.getId());
 
         //保存秒杀库存到Redis中
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY+voucher.getId(),voucher.getStock().toString());
+        if (voucher.getStock() < SECKILL_SHARD_THRESHOLD){
+            stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY+voucher.getId(),voucher.getStock().toString());
+        } else {
+            //库存较多的热门优惠券，把库存拆分到多个分片key，避免单个key成为热点
+            saveStockShards(voucher);
+        }
+        //库存已补充，清除各节点的售罄标记
+        soldOutRegistry.clear(voucher.getId());
+    }
+
+    @Override
+    public void updateSeckillLimit(Long voucherId, Integer rate, Integer burst, Integer concurrency) {
+        seckillLimiter.updateLimit(voucherId, rate, burst, concurrency);
+    }
+
+    //秒杀时间以毫秒时间戳保存，便于lua脚本直接比较
+    public static Map<String, String> toSeckillHash(SeckillVoucher seckillVoucher) {
+        Map<String, String> hash = new HashMap<>(3);
+        hash.put("beginTime", String.valueOf(toEpochMilli(seckillVoucher.getBeginTime())));
+        hash.put("endTime", String.valueOf(toEpochMilli(seckillVoucher.getEndTime())));
+        hash.put("stock", seckillVoucher.getStock().toString());
+        return hash;
+    }
+
+    //分片秒杀的预留记录：voucherId:userId:分片（-1表示尚未扣减）:创建时间
+    public static String toReservation(Long voucherId, Long userId, int shard, long createdAt) {
+        return voucherId + ":" + userId + ":" + shard + ":" + createdAt;
+    }
+
+    //释放预留：归还已扣减的分片库存并移出订单用户集合，只有删除预留记录成功的一方执行
+    public static boolean releaseReservation(StringRedisTemplate stringRedisTemplate, String orderId, String reservation) {
+        String[] parts = reservation.split(":");
+        String voucherId = parts[0];
+        String shard = parts[2];
+        boolean decremented = !"-1".equals(shard);
+        Long released = stringRedisTemplate.execute(SECKILL_RELEASE_SCRIPT,
+                Arrays.asList(SECKILL_RESERVE_KEY, SECKILL_STOCK_KEY + voucherId + ":" + shard,
+                        SECKILL_STOCK_KEY + voucherId, SECKILL_ORDER_KEY + voucherId),
+                orderId, parts[1], decremented ? "1" : "0");
+        return released != null && released == 1;
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private void saveStockShards(Voucher voucher) {
+        Long voucherId = voucher.getId();
+        int stock = voucher.getStock();
+        Map<String, String> shards = new HashMap<>(SECKILL_STOCK_SHARDS);
+        for (int i = 0; i < SECKILL_STOCK_SHARDS; i++) {
+            //余数分摊到前几个分片
+            int shardStock = stock / SECKILL_STOCK_SHARDS + (i < stock % SECKILL_STOCK_SHARDS ? 1 : 0);
+            shards.put(SECKILL_STOCK_KEY + voucherId + ":" + i, String.valueOf(shardStock));
+        }
+        //分片key之间相互独立，逐个写入以便分布在Redis Cluster的不同槽位
+        shards.forEach((key, value) -> stringRedisTemplate.opsForValue().set(key, value));
+        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucherId, "0");
+        stringRedisTemplate.opsForValue().set(SECKILL_SHARDS_KEY + voucherId, SECKILL_STOCK_SHARDS.toString());
+        //记录结束时间，到期后合并剩余库存
+        long endTime = toEpochMilli(voucher.getEndTime());
+        stringRedisTemplate.opsForZSet().add(SECKILL_SHARD_END_KEY, voucherId.toString(), endTime);
+    }
+
+    //秒杀结束后，把各分片剩余库存合并回 seckill:stock:{voucherId}
+    @Scheduled(fixedDelay = SECKILL_SHARD_RECONCILE_INTERVAL)
+    public void reconcileStockShards() {
+        Set<String> voucherIds = stringRedisTemplate.opsForZSet()
+                .rangeByScore(SECKILL_SHARD_END_KEY, 0, System.currentTimeMillis());
+        if (voucherIds == null || voucherIds.isEmpty()){
+            return;
+        }
+        for (String voucherId : voucherIds) {
+            //ZREM成功的节点负责合并，避免多个节点重复合并
+            Long removed = stringRedisTemplate.opsForZSet().remove(SECKILL_SHARD_END_KEY, voucherId);
+            if (removed == null || removed == 0){
+                continue;
+            }
+            try {
+                String shardCount = stringRedisTemplate.opsForValue().get(SECKILL_SHARDS_KEY + voucherId);
+                int shards = shardCount == null ? 0 : Integer.parseInt(shardCount);
+                long remaining = 0;
+                for (int i = 0; i < shards; i++) {
+                    //GETSET原子地取走分片剩余库存
+                    String left = stringRedisTemplate.opsForValue().getAndSet(SECKILL_STOCK_KEY + voucherId + ":" + i, "0");
+                    remaining += left == null ? 0 : Math.max(0, Long.parseLong(left));
+                }
+                stringRedisTemplate.opsForValue().increment(SECKILL_STOCK_KEY + voucherId, remaining);
+                stringRedisTemplate.delete(SECKILL_SHARDS_KEY + voucherId);
+                for (int i = 0; i < shards; i++) {
+                    stringRedisTemplate.delete(SECKILL_STOCK_KEY + voucherId + ":" + i);
+                }
+                if (remaining > 0){
+                    //合并后仍有库存，清除分片售罄时设置的标记
+                    soldOutRegistry.clear(Long.valueOf(voucherId));
+                }
+                log.info("优惠券{}分片库存已合并，剩余库存：{}", voucherId, remaining);
+            } catch (Exception e) {
+                log.error("优惠券{}分片库存合并失败", voucherId, e);
+                stringRedisTemplate.opsForZSet().add(SECKILL_SHARD_END_KEY, voucherId, System.currentTimeMillis());
+            }
+        }
+    }
+
+    //释放超时仍未发出订单消息的分片秒杀预留（下单节点在扣减库存后宕机或发送消息失败）
+    @Scheduled(fixedDelay = SECKILL_SHARD_RECONCILE_INTERVAL)
+    public void reconcileReservations() {
+        Map<Object, Object> reservations = stringRedisTemplate.opsForHash().entries(SECKILL_RESERVE_KEY);
+        long expiredBefore = System.currentTimeMillis() - SECKILL_RESERVE_TIMEOUT;
+        reservations.forEach((orderId, reservation) -> {
+            String value = reservation.toString();
+            String[] parts = value.split(":");
+            if (Long.parseLong(parts[3]) > expiredBefore){
+                return;
+            }
+            try {
+                if (!releaseReservation(stringRedisTemplate, orderId.toString(), value)){
+                    return;
+                }
+                log.warn("订单{}的预留超时未下单，已释放：{}", orderId, value);
+                if (!"-1".equals(parts[2])){
+                    //库存已归还，清除售罄标记
+                    soldOutRegistry.clear(Long.valueOf(parts[0]));
+                }
+            } catch (Exception e) {
+                log.error("释放订单{}的预留失败", orderId, e);
+            }
+        });
     }
 }
@@ -0,0 +1,103 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//布隆过滤器：判断id一定不存在或可能存在，位数组布局与Redis bitmap一致，便于同步
+public class BloomFilter {
+
+    private final AtomicLongArray bits;
+    private final long bitSize;
+    private final int hashCount;
+
+    /**
+     * @param expectedInsertions 预计元素数量
+     * @param fpp 期望误判率，例如 0.01
+     */
+    public BloomFilter(long expectedInsertions, double fpp) {
+        long size = (long) (-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        //按64位对齐，保证Redis中的bitmap长度与本地一致
+        this.bitSize = Math.max(64, (size + 63) / 64 * 64);
+        this.hashCount = Math.max(1, (int) Math.round((double) bitSize / expectedInsertions * Math.log(2)));
+        this.bits = new AtomicLongArray((int) (bitSize / 64));
+    }
+
+    public void put(String value) {
+        for (long index : bitIndexes(value)) {
+            setBit(index);
+        }
+    }
+
+    public boolean mightContain(String value) {
+        for (long index : bitIndexes(value)) {
+            if ((bits.get((int) (index >>> 6)) & (1L << (index & 63))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //双重哈希计算元素对应的k个位下标，也是Redis中SETBIT的offset
+    public long[] bitIndexes(String value) {
+        long hash = MurmurHash.hash64(value);
+        int hash1 = (int) hash;
+        int hash2 = (int) (hash >>> 32);
+        long[] indexes = new long[hashCount];
+        for (int i = 0; i < hashCount; i++) {
+            int combined = hash1 + (i + 1) * hash2;
+            if (combined < 0) {
+                combined = ~combined;
+            }
+            indexes[i] = combined % bitSize;
+        }
+        return indexes;
+    }
+
+    //合并Redis中的bitmap（其他节点新增的元素）
+    public void merge(byte[] redisBitmap) {
+        int length = (int) Math.min(redisBitmap.length, bitSize / 8);
+        for (int i = 0; i < length; i++) {
+            byte b = redisBitmap[i];
+            if (b == 0) {
+                continue;
+            }
+            for (int j = 0; j < 8; j++) {
+                //Redis bitmap中每个字节的高位在前
+                if ((b & (0x80 >>> j)) != 0) {
+                    setBit((long) i * 8 + j);
+                }
+            }
+        }
+    }
+
+    //转换为Redis bitmap的字节格式
+    public byte[] toRedisBitmap() {
+        byte[] bytes = new byte[(int) (bitSize / 8)];
+        for (int i = 0; i < bits.length(); i++) {
+            long word = bits.get(i);
+            if (word == 0) {
+                continue;
+            }
+            for (int j = 0; j < 64; j++) {
+                if ((word & (1L << j)) != 0) {
+                    long index = (long) i * 64 + j;
+                    bytes[(int) (index >>> 3)] |= (byte) (0x80 >>> (index & 7));
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private void setBit(long index) {
+        int word = (int) (index >>> 6);
+        long mask = 1L << (index & 63);
+        long old;
+        do {
+            old = bits.get(word);
+            if ((old & mask) != 0) {
+                return;
+            }
+        } while (!bits.compareAndSet(word, old, old | mask));
+    }
+}
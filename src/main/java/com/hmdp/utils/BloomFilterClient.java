@@ -0,0 +1,296 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 布隆过滤器：在查询Redis之前拦截一定不存在的id，防止缓存穿透
+ * 过滤器按代（generation）发布，bitmap保存在 bloom:{prefix}{gen}，当前代记录在 bloom:{prefix}meta：
+ * 1.同一代内只增不减，各节点定时合并Redis中的bitmap，新增id通过 bloom:add 频道立即通知
+ * 2.定时由一个节点按当前数据量重新构建新的一代，完成后原子切换，已删除数据带来的误判随旧一代一起淘汰
+ * 3.构建期间新增的id由构建节点同时写入新的一代，切换后仍写入旧一代的id也由构建节点补写
+ */
+@Component
+@Slf4j
+public class BloomFilterClient implements MessageListener {
+    //构造注入
+    private final StringRedisTemplate stringRedisTemplate;
+
+    //节点标识，用于区分各节点重建时的临时key和构建锁
+    private static final String NODE_ID = UUID.randomUUID().toString(true);
+
+    //key前缀 -> 过滤器
+    private final Map<String, Holder> filters = new ConcurrentHashMap<>();
+
+    public BloomFilterClient(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /**
+     * 注册一个布隆过滤器，加载完成前不做拦截
+     * @param keyPrefix 业务key前缀，例如 cache:shop:
+     * @param idLoader 从数据库加载全部id
+     */
+    public void register(String keyPrefix, Supplier<List<Long>> idLoader){
+        filters.put(keyPrefix, new Holder(idLoader));
+    }
+
+    /**
+     * 判断id是否可能存在，返回false则一定不存在
+     */
+    public <ID> boolean mightContain(String keyPrefix, ID id){
+        Holder holder = filters.get(keyPrefix);
+        Generation current = holder == null ? null : holder.current;
+        if (current == null){
+            //未注册或尚未加载完成，放行
+            return true;
+        }
+        return current.filter.mightContain(id.toString());
+    }
+
+    /**
+     * 新增数据后调用，写入本地和当前一代的Redis bitmap，并广播给其他节点
+     */
+    public <ID> void add(String keyPrefix, ID id){
+        Holder holder = filters.get(keyPrefix);
+        if (holder == null){
+            return;
+        }
+        String value = id.toString();
+        Generation current = holder.current;
+        if (current != null){
+            current.filter.put(value);
+            setBits(keyPrefix, current, value);
+        }
+        Generation building = holder.building;
+        if (building != null){
+            building.filter.put(value);
+        }
+        //立即通知其他节点，构建节点收到后写入正在构建的一代
+        stringRedisTemplate.convertAndSend(BLOOM_ADD_CHANNEL,
+                "+ " + keyPrefix + " " + (current == null ? 0 : current.gen) + " " + value);
+    }
+
+    /**
+     * 消息格式：
+     * + {prefix} {gen} {id} 新增id，gen为发送方写入的代
+     * = {prefix} {gen} 已切换到新的一代
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split(" ");
+        if (parts.length < 3){
+            return;
+        }
+        Holder holder = filters.get(parts[1]);
+        if (holder == null){
+            return;
+        }
+        long gen = Long.parseLong(parts[2]);
+        if ("=".equals(parts[0])){
+            Generation current = holder.current;
+            if (current == null || current.gen < gen){
+                refresh(parts[1], holder);
+            }
+            return;
+        }
+        if (parts.length < 4){
+            return;
+        }
+        String value = parts[3];
+        Generation current = holder.current;
+        if (current != null){
+            current.filter.put(value);
+            //发送方还在使用其他代（例如切换前的旧一代），补写到本节点的当前代
+            if (current.gen != gen){
+                setBits(parts[1], current, value);
+            }
+        }
+        Generation building = holder.building;
+        if (building != null){
+            building.filter.put(value);
+            setBits(parts[1], building, value);
+        }
+    }
+
+    /**
+     * 定时检查是否需要构建新的一代：距上次构建超过 BLOOM_REBUILD_INTERVAL 时由一个节点构建，其他节点等待切换
+     */
+    @Scheduled(initialDelay = 0, fixedDelay = BLOOM_REBUILD_CHECK_INTERVAL)
+    public void rebuild(){
+        filters.forEach((keyPrefix, holder) -> {
+            try {
+                Map<Object, Object> meta = stringRedisTemplate.opsForHash().entries(metaKey(keyPrefix));
+                long builtAt = parseLong(meta.get("builtAt"), 0);
+                String lockKey = BLOOM_KEY_PREFIX + keyPrefix + BLOOM_BUILD_LOCK_SUFFIX;
+                if (System.currentTimeMillis() - builtAt < BLOOM_REBUILD_INTERVAL
+                        || !Boolean.TRUE.equals(stringRedisTemplate.opsForValue()
+                                .setIfAbsent(lockKey, NODE_ID, BLOOM_BUILD_TIMEOUT, TimeUnit.SECONDS))){
+                    //不需要构建或其他节点正在构建，加载当前一代
+                    if (holder.current == null){
+                        refresh(keyPrefix, holder);
+                    }
+                    return;
+                }
+                try {
+                    build(keyPrefix, holder, parseLong(meta.get("count"), 0));
+                } finally {
+                    holder.building = null;
+                    if (NODE_ID.equals(stringRedisTemplate.opsForValue().get(lockKey))){
+                        stringRedisTemplate.delete(lockKey);
+                    }
+                }
+            } catch (Exception e) {
+                log.error("布隆过滤器{}重建失败", keyPrefix, e);
+            }
+        });
+    }
+
+    private void build(String keyPrefix, Holder holder, long lastCount){
+        //按上次的数据量预估容量，实际数量超出时按实际数量重新构建
+        long insertions = Math.max(BLOOM_EXPECTED_INSERTIONS, lastCount * BLOOM_GROWTH_FACTOR);
+        while (true) {
+            Long gen = stringRedisTemplate.opsForHash().increment(metaKey(keyPrefix), "seq", 1);
+            Generation building = new Generation(gen, new BloomFilter(insertions, BLOOM_FPP));
+            //先暴露正在构建的一代，再读取数据库，保证构建期间新增的id不会丢失
+            holder.building = building;
+            List<Long> ids = holder.idLoader.get();
+            if (ids.size() > insertions){
+                stringRedisTemplate.delete(bitmapKey(keyPrefix, gen));
+                insertions = (long) ids.size() * BLOOM_GROWTH_FACTOR;
+                continue;
+            }
+            for (Long id : ids) {
+                building.filter.put(id.toString());
+            }
+            //合并到新一代的key：构建期间其他节点新增的id已经通过SETBIT写入，不能直接SET覆盖
+            byte[] key = bitmapKey(keyPrefix, gen).getBytes(StandardCharsets.UTF_8);
+            byte[] tmpKey = (BLOOM_KEY_PREFIX + keyPrefix + BLOOM_REBUILD_SUFFIX + NODE_ID)
+                    .getBytes(StandardCharsets.UTF_8);
+            byte[] bitmap = building.filter.toRedisBitmap();
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                connection.set(tmpKey, bitmap);
+                connection.bitOp(RedisStringCommands.BitOperation.OR, key, key, tmpKey);
+                connection.del(tmpKey);
+                return null;
+            });
+            //切换当前一代
+            Generation old = holder.current;
+            Map<String, String> meta = new HashMap<>(4);
+            meta.put("gen", gen.toString());
+            meta.put("insertions", String.valueOf(insertions));
+            meta.put("count", String.valueOf(ids.size()));
+            meta.put("builtAt", String.valueOf(System.currentTimeMillis()));
+            stringRedisTemplate.opsForHash().putAll(metaKey(keyPrefix), meta);
+            holder.current = building;
+            holder.building = null;
+            if (old != null){
+                //其他节点切换前仍会读取旧一代
+                stringRedisTemplate.expire(bitmapKey(keyPrefix, old.gen), BLOOM_OLD_GENERATION_TTL, TimeUnit.SECONDS);
+            }
+            stringRedisTemplate.convertAndSend(BLOOM_ADD_CHANNEL, "= " + keyPrefix + " " + gen);
+            log.debug("布隆过滤器{}第{}代构建完成，元素数量：{}，容量：{}", keyPrefix, gen, ids.size(), insertions);
+            return;
+        }
+    }
+
+    //定时同步：切换到新的一代，或合并当前一代的bitmap，兜底补上丢失的新增通知
+    @Scheduled(fixedDelay = BLOOM_SYNC_INTERVAL)
+    public void sync(){
+        filters.forEach((keyPrefix, holder) -> {
+            try {
+                refresh(keyPrefix, holder);
+            } catch (Exception e) {
+                log.error("布隆过滤器{}同步失败", keyPrefix, e);
+            }
+        });
+    }
+
+    private void refresh(String keyPrefix, Holder holder){
+        Map<Object, Object> meta = stringRedisTemplate.opsForHash().entries(metaKey(keyPrefix));
+        if (meta.get("gen") == null){
+            return;
+        }
+        long gen = parseLong(meta.get("gen"), 0);
+        byte[] key = bitmapKey(keyPrefix, gen).getBytes(StandardCharsets.UTF_8);
+        byte[] bitmap = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(key));
+        if (bitmap == null){
+            return;
+        }
+        Generation current = holder.current;
+        if (current != null && current.gen == gen){
+            current.filter.merge(bitmap);
+            return;
+        }
+        if (current != null && current.gen > gen){
+            return;
+        }
+        long insertions = parseLong(meta.get("insertions"), BLOOM_EXPECTED_INSERTIONS);
+        Generation loaded = new Generation(gen, new BloomFilter(insertions, BLOOM_FPP));
+        loaded.filter.merge(bitmap);
+        holder.current = loaded;
+    }
+
+    private void setBits(String keyPrefix, Generation generation, String value){
+        byte[] key = bitmapKey(keyPrefix, generation.gen).getBytes(StandardCharsets.UTF_8);
+        long[] indexes = generation.filter.bitIndexes(value);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (long index : indexes) {
+                connection.setBit(key, index, true);
+            }
+            return null;
+        });
+    }
+
+    private static String metaKey(String keyPrefix){
+        return BLOOM_KEY_PREFIX + keyPrefix + BLOOM_META_SUFFIX;
+    }
+
+    private static String bitmapKey(String keyPrefix, long gen){
+        return BLOOM_KEY_PREFIX + keyPrefix + gen;
+    }
+
+    private static long parseLong(Object value, long defaultValue){
+        return value == null ? defaultValue : Long.parseLong(value.toString());
+    }
+
+    private static class Holder {
+        private final Supplier<List<Long>> idLoader;
+        //当前用于判断的一代
+        private volatile Generation current;
+        //本节点正在构建的一代
+        private volatile Generation building;
+
+        private Holder(Supplier<List<Long>> idLoader) {
+            this.idLoader = idLoader;
+        }
+    }
+
+    //一代过滤器：各节点按meta中记录的容量构建，位下标一致
+    private static class Generation {
+        private final long gen;
+        private final BloomFilter filter;
+
+        private Generation(long gen, BloomFilter filter) {
+            this.gen = gen;
+            this.filter = filter;
+        }
+    }
+}
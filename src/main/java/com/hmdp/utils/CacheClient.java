@@ -1,35 +1,172 @@
 package com.hmdp.utils;
 
+import cn.hutool.cache.Cache;
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.lang.UUID;
 import cn.hutool.core.lang.func.Func;
-import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
 import com.hmdp.entity.Shop;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.function.Function;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
 
 import static com.hmdp.utils.RedisConstants.*;
 
 @Component
 @Slf4j
-public class CacheClient {
+public class CacheClient implements MessageListener {
     //构造注入
     private final StringRedisTemplate stringRedisTemplate;
+    private final BloomFilterClient bloomFilterClient;
+    private final RedisLockClient redisLockClient;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    //本地一级缓存：key前缀 -> 有界、带过期时间的LRU缓存，只缓存反序列化后的对象
+    private final Map<String, Cache<String, LocalEntry>> localCaches = new ConcurrentHashMap<>();
+    //本地缓存版本号（按key哈希分段），收到失效消息时递增，版本不一致的本地条目视为失效
+    private final AtomicLongArray localVersions = new AtomicLongArray(LOCAL_CACHE_VERSION_STRIPES);
+    //当前节点标识，用于忽略自己发出的失效消息
+    private static final String NODE_ID = UUID.randomUUID().toString(true);
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, BloomFilterClient bloomFilterClient,
+                       RedisLockClient redisLockClient) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.bloomFilterClient = bloomFilterClient;
+        this.redisLockClient = redisLockClient;
+    }
+
+    /**
+     * 为某个key前缀开启本地缓存（L1），命中时不再访问Redis，也不再解析JSON
+     * @param keyPrefix key前缀，例如 cache:shop:
+     * @param capacity 最大缓存条数，超出后按LRU淘汰
+     * @param time 本地缓存有效期
+     * @param unit 时间单位
+     */
+    public void enableLocalCache(String keyPrefix, int capacity, Long time, TimeUnit unit){
+        localCaches.put(keyPrefix, CacheUtil.newLRUCache(capacity, unit.toMillis(time)));
+    }
+
+    @SuppressWarnings("unchecked")
+    public <R> R getLocal(String key){
+        Cache<String, LocalEntry> cache = localCacheOf(key);
+        if (cache == null){
+            return null;
+        }
+        LocalEntry entry = cache.get(key);
+        //版本落后说明加载后又收到了失效消息，不能再使用
+        if (entry == null || entry.version != localVersion(key)){
+            return null;
+        }
+        return (R) entry.value;
+    }
+
+    /**
+     * 获取key当前的本地版本号，应在读取Redis/数据库之前获取，写入本地缓存时带上
+     */
+    public long localVersion(String key){
+        return localVersions.get(versionStripe(key));
+    }
+
+    /**
+     * 写入本地缓存
+     * @param version 读取数据前通过 localVersion 获取的版本号，期间若发生失效则写入的条目不会被命中
+     */
+    public void putLocal(String key, Object value, long version){
+        Cache<String, LocalEntry> cache = localCacheOf(key);
+        if (cache != null && value != null){
+            cache.put(key, new LocalEntry(value, version));
+        }
+    }
+
+    public void evictLocal(String key){
+        Cache<String, LocalEntry> cache = localCacheOf(key);
+        if (cache != null){
+            localVersions.incrementAndGet(versionStripe(key));
+            cache.remove(key);
+        }
+    }
+
+    //根据key找到其前缀对应的本地缓存，没有开启则返回null
+    private Cache<String, LocalEntry> localCacheOf(String key){
+        if (localCaches.isEmpty()){
+            return null;
+        }
+        for (Map.Entry<String, Cache<String, LocalEntry>> entry : localCaches.entrySet()) {
+            if (key.startsWith(entry.getKey())){
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    private int versionStripe(String key){
+        return (key.hashCode() & Integer.MAX_VALUE) % LOCAL_CACHE_VERSION_STRIPES;
+    }
+
+    //本地失效并通知其他节点失效
+    private void invalidate(String key){
+        if (localCacheOf(key) == null){
+            return;
+        }
+        evictLocal(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, NODE_ID + ":" + key);
+    }
+
+    //收到其他节点的失效消息，删除本地缓存
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int index = body.indexOf(':');
+        if (index < 0 || NODE_ID.equals(body.substring(0, index))){
+            return;
+        }
+        evictLocal(body.substring(index + 1));
     }
 
     public void set(String key, Object value, Long time, TimeUnit unit){
         stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value),time,unit);
+        invalidate(key);
+    }
+
+    //删除缓存：同时删除Redis和各节点的本地缓存
+    public void delete(String key){
+        stringRedisTemplate.delete(key);
+        invalidate(key);
     }
 
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit){
@@ -39,64 +176,232 @@ public class CacheClient {
         redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
         //写入Redis
         stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(redisData));
+        invalidate(key);
     }
 
-    public static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    //缓存重建线程池：有界队列，队列满时放弃本次异步重建（下次访问或定时刷新时重试）
+    public static final ExecutorService CACHE_REBUILD_EXECUTOR = new ThreadPoolExecutor(
+            CACHE_REBUILD_POOL_SIZE, CACHE_REBUILD_POOL_SIZE, 60L, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(CACHE_REBUILD_QUEUE_SIZE), r -> {
+                Thread thread = new Thread(r, "cache-rebuild");
+                thread.setDaemon(true);
+                return thread;
+            });
+    //本节点正在重建的key
+    private final Set<String> rebuildingKeys = ConcurrentHashMap.newKeySet();
+    //最近被访问的逻辑过期key，定时在过期前主动刷新
+    private final Map<String, RefreshEntry> refreshEntries = new ConcurrentHashMap<>();
 
+    /**
+     * 逻辑过期查询：
+     * 1.未预热的key同步加载（同一key单飞），不返回null
+     * 2.过期不超过 CACHE_LOGICAL_MAX_STALE 时返回旧数据并异步重建，超过则同步重建
+     * 3.最近访问过的key由定时任务在逻辑过期前主动刷新，热点数据正常情况下不会过期
+     * 数据库中不存在的id先经过布隆过滤器拦截，漏过的缓存带TTL的空值，不写入逻辑过期数据
+     */
     public <R,ID>R queryWithLogicalExpire(
             String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback,Long time,TimeUnit unit){
+        //布隆过滤器判断一定不存在，直接返回，不访问Redis和数据库
+        if (!bloomFilterClient.mightContain(keyPrefix, id)){
+            return null;
+        }
         String key=keyPrefix+id;
         //1.从redis查询缓存
         String json = stringRedisTemplate.opsForValue().get(key);
         //2.判断是否存在
-        //3.不存在，直接返回
-        if (StrUtil.isBlank(json)){
+        //命中空值
+        if (json != null && StrUtil.isBlank(json)){
             return null;
         }
+        //3.不存在，同步加载
+        if (json == null){
+            return loadOnce(key, () -> rebuildLogical(key, id, type, dbFallback, time, unit, 0L, true));
+        }
         //4.存在，先把Json反序列化为对象
         RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        JSONObject data = (JSONObject) redisData.getData();
-        R r = JSONUtil.toBean(data,type);
-        LocalDateTime expireTime = redisData.getExpireTime();
+        R r = toData(redisData, type);
+        long expireAt = toEpochMilli(redisData.getExpireTime());
+        //记录访问，交给定时任务提前刷新
+        trackRefresh(key, expireAt, unit.toMillis(time),
+                observed -> submitRebuild(key, id, type, dbFallback, time, unit, observed));
         //5.判断是否过期
-        if (expireTime.isAfter(LocalDateTime.now())){
+        long now = System.currentTimeMillis();
+        if (expireAt > now){
             //未过期，直接返回店铺信息
             return r;
         }
-        //过期，重建缓存
-        //获取互斥锁
-        String lockKey = LOCK_SHOP_KEY+id;
-        Boolean isLock = tryLock(lockKey);
-        //判断是否获取锁成功
-        if (isLock){
-            //成功，开启独立线程，实现缓存重建
+        //过期太久，不再返回旧数据，同步重建
+        if (now - expireAt > CACHE_LOGICAL_MAX_STALE){
+            return loadOnce(key, () -> rebuildLogical(key, id, type, dbFallback, time, unit, expireAt, true));
+        }
+        //过期，异步重建缓存，返回过期商品信息
+        submitRebuild(key, id, type, dbFallback, time, unit, expireAt);
+        return r;
+    }
+
+    //本节点同一key只提交一个重建任务，加锁和释放锁都在重建线程中完成
+    private <R,ID> void submitRebuild(
+            String key, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit, long observedExpireAt){
+        if (!rebuildingKeys.add(key)){
+            return;
+        }
+        try {
             CACHE_REBUILD_EXECUTOR.submit(() -> {
                 try {
-                    //查询数据库
-                    R r1 = dbFallback.apply(id);
-                    //存入redis
-                    this.setWithLogicalExpire(key,r1,time,unit);
+                    rebuildLogical(key, id, type, dbFallback, time, unit, observedExpireAt, false);
                 } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }finally {
-                    //释放锁
-                    unLock(lockKey);
+                    log.error("缓存重建失败：{}", key, e);
+                } finally {
+                    rebuildingKeys.remove(key);
                 }
             });
+        } catch (RejectedExecutionException e) {
+            rebuildingKeys.remove(key);
+            log.warn("缓存重建队列已满，跳过：{}", key);
         }
-        //返回过期商品信息
-        return r;
+    }
+
+    /**
+     * 重建逻辑过期缓存
+     * @param observedExpireAt 调用方看到的逻辑过期时间，Redis中的数据比它新说明其他节点已经重建
+     * @param wait 是否等待其他节点的重建，同步加载时等待，异步重建时获取不到锁直接放弃
+     */
+    private <R,ID> R rebuildLogical(String key, ID id, Class<R> type, Function<ID,R> dbFallback,
+                                    Long time, TimeUnit unit, long observedExpireAt, boolean wait){
+        ILock lock = redisLockClient.getLock(key);
+        boolean isLock = wait
+                ? lock.tryLock(LOCK_SHOP_WAIT, TimeUnit.SECONDS.toMillis(LOCK_SHOP_TTL), TimeUnit.MILLISECONDS)
+                : lock.tryLock(LOCK_SHOP_TTL);
+        if (!isLock && !wait){
+            //其他节点正在重建
+            return null;
+        }
+        try {
+            //再次检查，其他节点可能已经完成重建
+            String latest = stringRedisTemplate.opsForValue().get(key);
+            if (latest != null && StrUtil.isBlank(latest)){
+                //其他节点已确认数据不存在
+                refreshEntries.remove(key);
+                return null;
+            }
+            if (StrUtil.isNotBlank(latest)){
+                RedisData redisData = JSONUtil.toBean(latest, RedisData.class);
+                long expireAt = toEpochMilli(redisData.getExpireTime());
+                if (expireAt > observedExpireAt && expireAt > System.currentTimeMillis()){
+                    updateRefresh(key, expireAt);
+                    return toData(redisData, type);
+                }
+            }
+            //查询数据库
+            R r = dbFallback.apply(id);
+            if (r == null){
+                //不存在：缓存带TTL的空值，不写入永不过期的逻辑过期数据，也不再定时刷新
+                stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+                invalidate(key);
+                refreshEntries.remove(key);
+                return null;
+            }
+            //存入redis
+            this.setWithLogicalExpire(key, r, time, unit);
+            updateRefresh(key, System.currentTimeMillis() + unit.toMillis(time));
+            return r;
+        } finally {
+            if (isLock){
+                //释放锁
+                lock.unLock();
+            }
+        }
+    }
+
+    private void trackRefresh(String key, long expireAt, long ttlMillis, LongConsumer refresher){
+        RefreshEntry entry = refreshEntries.get(key);
+        if (entry == null){
+            if (refreshEntries.size() >= CACHE_REFRESH_MAX_KEYS){
+                return;
+            }
+            entry = refreshEntries.computeIfAbsent(key, k -> new RefreshEntry(ttlMillis, refresher));
+        }
+        entry.lastAccess = System.currentTimeMillis();
+        if (expireAt > entry.expireAt){
+            entry.expireAt = expireAt;
+        }
+    }
+
+    private void updateRefresh(String key, long expireAt){
+        RefreshEntry entry = refreshEntries.get(key);
+        if (entry != null && expireAt > entry.expireAt){
+            entry.expireAt = expireAt;
+        }
+    }
+
+    //提前刷新使用独立线程，不与@Scheduled的其他定时任务（布隆过滤器、GEO索引的全量重建等）共用线程，避免被阻塞
+    private ScheduledExecutorService refreshScheduler;
+
+    @PostConstruct
+    private void init(){
+        refreshScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "cache-refresh-ahead");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refreshScheduler.scheduleWithFixedDelay(this::refreshAhead,
+                CACHE_REFRESH_SCAN_INTERVAL, CACHE_REFRESH_SCAN_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy(){
+        refreshScheduler.shutdownNow();
+    }
+
+    //定时提前刷新：最近访问过、即将逻辑过期的key提交异步重建，长时间未访问的key不再跟踪
+    public void refreshAhead(){
+        long now = System.currentTimeMillis();
+        refreshEntries.forEach((key, entry) -> {
+            if (now - entry.lastAccess > CACHE_REFRESH_WINDOW){
+                refreshEntries.remove(key, entry);
+                return;
+            }
+            if (now >= entry.expireAt - (long) (entry.ttlMillis * CACHE_REFRESH_AHEAD_RATIO)){
+                try {
+                    entry.refresher.accept(entry.expireAt);
+                } catch (Exception e) {
+                    //异常会终止定时任务，只记录日志
+                    log.error("缓存提前刷新失败：{}", key, e);
+                }
+            }
+        });
+    }
+
+    private static <R> R toData(RedisData redisData, Class<R> type){
+        Object data = redisData.getData();
+        //数据库中不存在时缓存的是空数据
+        return data == null ? null : JSONUtil.toBean((JSONObject) data, type);
+    }
+
+    private static long toEpochMilli(LocalDateTime time){
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
     }
 
     public <R,ID> R queryWithPassThrough(
             String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback,Long time,TimeUnit unit){
+        //布隆过滤器判断一定不存在，直接返回，不访问Redis和数据库
+        if (!bloomFilterClient.mightContain(keyPrefix, id)){
+            return null;
+        }
         String key=keyPrefix+id;
+        //0.先查本地缓存，命中直接返回
+        R local = getLocal(key);
+        if (local != null){
+            return local;
+        }
+        long version = localVersion(key);
         //1.从redis查询缓存
         String json = stringRedisTemplate.opsForValue().get(key);
         //2.判断是否存在
         //3.存在，直接返回
         if (StrUtil.isNotBlank(json)){
             R r = JSONUtil.toBean(json,type);
+            putLocal(key, r, version);
             return r;
         }
         //判断命中的是否是空值
@@ -104,28 +409,191 @@ public class CacheClient {
             //返回错误信息
             return null;
         }
-        //4.不存在，更具id查询数据库
-        R r = dbFallback.apply(id);
-        //5，不存在，返回错误
-        if (r == null){
-            //缓存穿透解决方案：在此处存入空值
-            stringRedisTemplate.opsForValue().set(key,"",CACHE_NULL_TTL,TimeUnit.MINUTES);
-            return null;
+        //4.不存在，合并同一key的并发回源，同一节点只有一个线程查询数据库
+        return loadOnce(key, () -> loadWithLock(key, id, type, dbFallback, time, unit, version));
+    }
+
+    //正在回源的key -> 共享的加载结果，等待者直接复用，不再各自查询数据库
+    private final Map<String, CompletableFuture<Object>> inFlightLoads = new ConcurrentHashMap<>();
+
+    /**
+     * 单飞（single-flight）加载：同一个key同时只执行一次loader，其他线程等待同一个结果
+     */
+    @SuppressWarnings("unchecked")
+    private <R> R loadOnce(String key, Supplier<R> loader){
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> loading = inFlightLoads.putIfAbsent(key, future);
+        if (loading != null){
+            //已有线程在加载，等待其结果
+            try {
+                return (R) loading.get(LOCK_SHOP_TTL, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            } catch (TimeoutException e) {
+                throw new RuntimeException("缓存重建超时：" + key, e);
+            }
+        }
+        try {
+            R r = loader.get();
+            future.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightLoads.remove(key, future);
         }
-        //6.存在，写入redis
-        this.set(key,r,time,unit);
-        //返回
-        return r;
     }
 
-    //获取锁
-    public Boolean tryLock(String key){
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-        return BooleanUtil.isTrue(flag);
+    //由本节点的加载线程执行：获取分布式锁防止多个节点同时回源
+    private <R,ID> R loadWithLock(
+            String key, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit, long version){
+        //等待其他节点的重建完成：锁释放时被立即唤醒，再次检查Redis即可命中
+        ILock lock = redisLockClient.getLock(key);
+        boolean isLock = lock.tryLock(LOCK_SHOP_WAIT, TimeUnit.SECONDS.toMillis(LOCK_SHOP_TTL), TimeUnit.MILLISECONDS);
+        try {
+            //再次检查Redis，其他节点可能已经完成重建
+            String json = stringRedisTemplate.opsForValue().get(key);
+            if (StrUtil.isNotBlank(json)){
+                R r = JSONUtil.toBean(json, type);
+                putLocal(key, r, version);
+                return r;
+            }
+            if (json != null){
+                return null;
+            }
+            //等待超时仍未获取到锁，直接查询数据库：每个节点至多一次回源
+            R r = dbFallback.apply(id);
+            //5，不存在，返回错误
+            if (r == null){
+                //缓存穿透解决方案：在此处存入空值
+                stringRedisTemplate.opsForValue().set(key,"",CACHE_NULL_TTL,TimeUnit.MINUTES);
+                return null;
+            }
+            //6.存在，写入redis（回填缓存不是数据变更，无需广播失效）
+            stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(r), time, unit);
+            putLocal(key, r, version);
+            return r;
+        } finally {
+            if (isLock){
+                lock.unLock();
+            }
+        }
     }
-    //释放锁
-    public void unLock(String key){
-        stringRedisTemplate.delete(key);
+
+    /**
+     * 批量查询：一次MGET读取Redis，未命中的id一次性查询数据库，再通过pipeline批量回填
+     * @param keyPrefix key前缀
+     * @param ids id集合，返回结果与其顺序一致，不存在的id被忽略
+     * @param type 实体类型，需包含id属性
+     * @param bulkDbFallback 根据id集合批量查询数据库，例如 listByIds
+     */
+    public <R,ID> List<R> queryBatch(
+            String keyPrefix, Collection<ID> ids, Class<R> type, Function<Collection<ID>,List<R>> bulkDbFallback,
+            Long time, TimeUnit unit){
+        if (ids == null || ids.isEmpty()){
+            return Collections.emptyList();
+        }
+        Map<ID, R> found = new HashMap<>(ids.size());
+        //1.过滤布隆过滤器中不存在的id，并查询本地缓存
+        List<ID> remoteIds = new ArrayList<>(ids.size());
+        List<String> keys = new ArrayList<>(ids.size());
+        Map<ID, Long> versions = new HashMap<>(ids.size());
+        for (ID id : new LinkedHashSet<>(ids)) {
+            if (!bloomFilterClient.mightContain(keyPrefix, id)){
+                continue;
+            }
+            String key = keyPrefix + id;
+            R local = getLocal(key);
+            if (local != null){
+                found.put(id, local);
+                continue;
+            }
+            versions.put(id, localVersion(key));
+            remoteIds.add(id);
+            keys.add(key);
+        }
+        //2.一次MGET查询Redis
+        List<ID> missIds = new ArrayList<>();
+        if (!keys.isEmpty()){
+            List<String> jsons = stringRedisTemplate.opsForValue().multiGet(keys);
+            for (int i = 0; i < keys.size(); i++) {
+                String json = jsons == null ? null : jsons.get(i);
+                if (StrUtil.isNotBlank(json)){
+                    R r = JSONUtil.toBean(json, type);
+                    putLocal(keys.get(i), r, versions.get(remoteIds.get(i)));
+                    found.put(remoteIds.get(i), r);
+                } else if (json == null){
+                    //空字符串是缓存的空值，不再查询数据库
+                    missIds.add(remoteIds.get(i));
+                }
+            }
+        }
+        //3.未命中的id一次性查询数据库，并通过pipeline批量写回
+        if (!missIds.isEmpty()){
+            Map<String, R> loaded = new HashMap<>(missIds.size());
+            for (R r : bulkDbFallback.apply(missIds)) {
+                loaded.put(String.valueOf(BeanUtil.getProperty(r, "id")), r);
+            }
+            long seconds = unit.toSeconds(time);
+            long nullSeconds = TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (ID id : missIds) {
+                    R r = loaded.get(id.toString());
+                    if (r == null){
+                        //缓存穿透解决方案：存入空值
+                        conn.setEx(keyPrefix + id, nullSeconds, "");
+                    } else {
+                        conn.setEx(keyPrefix + id, seconds, JSONUtil.toJsonStr(r));
+                    }
+                }
+                return null;
+            });
+            for (ID id : missIds) {
+                R r = loaded.get(id.toString());
+                if (r != null){
+                    putLocal(keyPrefix + id, r, versions.get(id));
+                    found.put(id, r);
+                }
+            }
+        }
+        //4.按传入顺序返回
+        List<R> result = new ArrayList<>(found.size());
+        for (ID id : new LinkedHashSet<>(ids)) {
+            R r = found.get(id);
+            if (r != null){
+                result.add(r);
+            }
+        }
+        return result;
+    }
+
+    //提前刷新的跟踪条目
+    private static class RefreshEntry {
+        private final long ttlMillis;
+        private final LongConsumer refresher;
+        private volatile long lastAccess;
+        private volatile long expireAt;
+
+        private RefreshEntry(long ttlMillis, LongConsumer refresher) {
+            this.ttlMillis = ttlMillis;
+            this.refresher = refresher;
+        }
+    }
+
+    //本地缓存条目，记录写入时的版本号
+    private static class LocalEntry {
+        private final Object value;
+        private final long version;
+
+        private LocalEntry(Object value, long version) {
+            this.value = value;
+            this.version = version;
+        }
     }
 
 }
@@ -0,0 +1,298 @@
+package com.hmdp.utils;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 进程内的均匀网格空间索引，按分组（例如店铺类型）分别建立：
+ * 1.坐标保存在基本类型数组中，按网格排序，每个网格对应数组中的一段连续区间
+ * 2.写入时只重建所在分组的快照（写时复制），查询无锁
+ * 3.按距离升序返回，支持偏移分页和游标分页（上一页最后一条的距离和id）
+ * 4.全量加载期间的增量写入会在加载时重放，不会被旧的全量数据覆盖
+ * 距离计算与Redis GEO一致（haversine，单位米）
+ */
+public class GeoGridIndex {
+
+    //与Redis GEO使用的地球半径一致
+    private static final double EARTH_RADIUS = 6372797.560856;
+    private static final double METERS_PER_DEGREE = Math.toRadians(1) * EARTH_RADIUS;
+
+    //网格边长（度）
+    private final double cellSize;
+    //分组 -> 当前快照
+    private final Map<Long, Snapshot> snapshots = new ConcurrentHashMap<>();
+    //分组 -> 全部点，写入时在分组上加锁
+    private final Map<Long, Map<Long, double[]>> points = new ConcurrentHashMap<>();
+    //增量写入序号
+    private final AtomicLong sequence = new AtomicLong();
+    //分组 -> 上次全量加载以来的增量写入（id -> 写入），全量加载时重放其中较新的部分
+    private final Map<Long, Map<Long, Write>> writes = new ConcurrentHashMap<>();
+
+    /**
+     * @param cellSize 网格边长（度），约为常用查询半径的1/4到1/2
+     */
+    public GeoGridIndex(double cellSize) {
+        this.cellSize = cellSize;
+    }
+
+    /**
+     * 当前的增量写入序号，应在读取全量数据之前获取，传给 load
+     */
+    public long sequence() {
+        return sequence.get();
+    }
+
+    /**
+     * 当前有数据的分组，全量加载时用来找出已经不存在的分组
+     */
+    public Set<Long> groups() {
+        Set<Long> groups = new HashSet<>();
+        points.forEach((group, groupPoints) -> {
+            if (!groupPoints.isEmpty()){
+                groups.add(group);
+            }
+        });
+        return groups;
+    }
+
+    /**
+     * 全量替换一个分组
+     * @param since 读取全量数据之前通过 sequence 获取的序号，之后的增量写入会覆盖全量数据
+     */
+    public void load(Long group, Map<Long, double[]> groupPoints, long since) {
+        Map<Long, double[]> copy = new LinkedHashMap<>(groupPoints);
+        synchronized (lockOf(group)) {
+            Map<Long, Write> groupWrites = writes.get(group);
+            if (groupWrites != null){
+                groupWrites.entrySet().removeIf(entry -> {
+                    Write write = entry.getValue();
+                    if (write.seq <= since){
+                        //已包含在全量数据中
+                        return true;
+                    }
+                    if (write.point == null){
+                        copy.remove(entry.getKey());
+                    } else {
+                        copy.put(entry.getKey(), write.point);
+                    }
+                    return false;
+                });
+            }
+            points.put(group, copy);
+            snapshots.put(group, new Snapshot(copy, cellSize));
+        }
+    }
+
+    public void put(Long group, Long id, double x, double y) {
+        double[] point = {x, y};
+        synchronized (lockOf(group)) {
+            recordWrite(group, id, point);
+            Map<Long, double[]> groupPoints = points.computeIfAbsent(group, k -> new LinkedHashMap<>());
+            groupPoints.put(id, point);
+            snapshots.put(group, new Snapshot(groupPoints, cellSize));
+        }
+    }
+
+    public void remove(Long group, Long id) {
+        synchronized (lockOf(group)) {
+            recordWrite(group, id, null);
+            Map<Long, double[]> groupPoints = points.get(group);
+            if (groupPoints == null || groupPoints.remove(id) == null){
+                return;
+            }
+            snapshots.put(group, new Snapshot(groupPoints, cellSize));
+        }
+    }
+
+    private void recordWrite(Long group, Long id, double[] point) {
+        writes.computeIfAbsent(group, k -> new HashMap<>()).put(id, new Write(sequence.incrementAndGet(), point));
+    }
+
+    /**
+     * 偏移分页：返回半径内按距离升序的第 [offset, offset + limit) 条
+     */
+    public Hits nearby(Long group, double x, double y, double radius, int offset, int limit) {
+        Hits top = search(group, x, y, radius, -1, Long.MIN_VALUE, offset + limit);
+        return top.skip(offset);
+    }
+
+    /**
+     * 游标分页：返回半径内按距离升序、排在(lastDistance, lastId)之后的limit条，第一页传 -1 和 Long.MIN_VALUE
+     */
+    public Hits nearbyAfter(Long group, double x, double y, double radius,
+                              double lastDistance, long lastId, int limit) {
+        return search(group, x, y, radius, lastDistance, lastId, limit);
+    }
+
+    private Hits search(Long group, double x, double y, double radius,
+                          double lastDistance, long lastId, int limit) {
+        Snapshot snapshot = snapshots.get(group);
+        if (snapshot == null || limit <= 0){
+            return new Hits(new long[0], new double[0], 0);
+        }
+        //有序插入的定长结果数组，只保留最近的limit个
+        long[] ids = new long[limit];
+        double[] distances = new double[limit];
+        int size = 0;
+        //由半径换算需要扫描的网格范围，经度方向按纬度放大
+        double dy = radius / METERS_PER_DEGREE;
+        double dx = dy / Math.max(Math.cos(Math.toRadians(y)), 1e-6);
+        long minCx = cell(x - dx), maxCx = cell(x + dx);
+        long minCy = cell(y - dy), maxCy = cell(y + dy);
+        for (long cx = minCx; cx <= maxCx; cx++) {
+            for (long cy = minCy; cy <= maxCy; cy++) {
+                int[] range = snapshot.cells.get(cellKey(cx, cy));
+                if (range == null){
+                    continue;
+                }
+                for (int i = range[0]; i < range[1]; i++) {
+                    double d = distance(x, y, snapshot.xs[i], snapshot.ys[i]);
+                    long id = snapshot.ids[i];
+                    if (d > radius || !after(d, id, lastDistance, lastId)){
+                        continue;
+                    }
+                    if (size == limit && !after(distances[size - 1], ids[size - 1], d, id)){
+                        continue;
+                    }
+                    //插入排序
+                    int pos = size == limit ? size - 1 : size++;
+                    while (pos > 0 && after(distances[pos - 1], ids[pos - 1], d, id)) {
+                        ids[pos] = ids[pos - 1];
+                        distances[pos] = distances[pos - 1];
+                        pos--;
+                    }
+                    ids[pos] = id;
+                    distances[pos] = d;
+                }
+            }
+        }
+        return new Hits(ids, distances, size);
+    }
+
+    //(d1, id1) 是否排在 (d2, id2) 之后
+    private static boolean after(double d1, long id1, double d2, long id2) {
+        return d1 > d2 || (d1 == d2 && id1 > id2);
+    }
+
+    //haversine距离（米），与Redis GEODIST一致
+    public static double distance(double x1, double y1, double x2, double y2) {
+        double lat1 = Math.toRadians(y1);
+        double lat2 = Math.toRadians(y2);
+        double u = Math.sin((lat2 - lat1) / 2);
+        double v = Math.sin(Math.toRadians(x2 - x1) / 2);
+        return 2 * EARTH_RADIUS * Math.asin(Math.sqrt(u * u + Math.cos(lat1) * Math.cos(lat2) * v * v));
+    }
+
+    private long cell(double degree) {
+        return (long) Math.floor(degree / cellSize);
+    }
+
+    private static long cellKey(long cx, long cy) {
+        return cx << 32 ^ (cy & 0xFFFFFFFFL);
+    }
+
+    //分组级别的写锁
+    private final Map<Long, Object> locks = new ConcurrentHashMap<>();
+
+    private Object lockOf(Long group) {
+        return locks.computeIfAbsent(group, k -> new Object());
+    }
+
+    //增量写入，point为null表示删除
+    private static class Write {
+        private final long seq;
+        private final double[] point;
+
+        private Write(long seq, double[] point) {
+            this.seq = seq;
+            this.point = point;
+        }
+    }
+
+    //不可变快照：点按网格排序，cells记录每个网格在数组中的区间 [start, end)
+    private static class Snapshot {
+        private final long[] ids;
+        private final double[] xs;
+        private final double[] ys;
+        private final Map<Long, int[]> cells;
+
+        private Snapshot(Map<Long, double[]> groupPoints, double cellSize) {
+            int n = groupPoints.size();
+            //先按网格分桶，再顺序写入数组
+            Map<Long, int[]> counts = new HashMap<>();
+            long[] keys = new long[n];
+            long[] pointIds = new long[n];
+            double[][] coords = new double[n][];
+            int i = 0;
+            for (Map.Entry<Long, double[]> entry : groupPoints.entrySet()) {
+                double[] p = entry.getValue();
+                long key = cellKey((long) Math.floor(p[0] / cellSize), (long) Math.floor(p[1] / cellSize));
+                keys[i] = key;
+                pointIds[i] = entry.getKey();
+                coords[i] = p;
+                counts.computeIfAbsent(key, k -> new int[2])[1]++;
+                i++;
+            }
+            int start = 0;
+            for (int[] range : counts.values()) {
+                int count = range[1];
+                range[0] = start;
+                range[1] = start;
+                start += count;
+            }
+            this.ids = new long[n];
+            this.xs = new double[n];
+            this.ys = new double[n];
+            for (int j = 0; j < n; j++) {
+                //range[1] 作为写入游标，写完后正好是区间终点
+                int pos = counts.get(keys[j])[1]++;
+                ids[pos] = pointIds[j];
+                xs[pos] = coords[j][0];
+                ys[pos] = coords[j][1];
+            }
+            this.cells = counts;
+        }
+    }
+
+    //查询结果：按距离升序的id和距离（米）
+    public static class Hits {
+        private final long[] ids;
+        private final double[] distances;
+        private final int size;
+
+        private Hits(long[] ids, double[] distances, int size) {
+            this.ids = ids;
+            this.distances = distances;
+            this.size = size;
+        }
+
+        private Hits skip(int n) {
+            if (n <= 0){
+                return this;
+            }
+            int left = Math.max(0, size - n);
+            long[] newIds = new long[left];
+            double[] newDistances = new double[left];
+            System.arraycopy(ids, size - left, newIds, 0, left);
+            System.arraycopy(distances, size - left, newDistances, 0, left);
+            return new Hits(newIds, newDistances, left);
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public long id(int i) {
+            return ids[i];
+        }
+
+        public double distance(int i) {
+            return distances[i];
+        }
+    }
+}
@@ -1,8 +1,17 @@
 package com.hmdp.utils;
 
+import java.util.concurrent.TimeUnit;
+
 public interface ILock {
     boolean tryLock(long timeoutSec);
 
+    /**
+     * 在waitTime内等待获取锁
+     * @param waitTime 最长等待时间，小于等于0时不等待
+     * @param leaseTime 锁的过期时间
+     */
+    boolean tryLock(long waitTime, long leaseTime, TimeUnit unit);
+
     void unLock();
 
 }
@@ -0,0 +1,51 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * 分布式锁指标，按锁名前缀（去掉末尾的id）聚合，通过 /actuator/metrics 查看：
+ * lock.acquire 获取锁耗时，result=success/failure
+ * lock.hold 持有锁时长，用于评估锁的过期时间
+ * lock.lease.expired 持有期间锁已过期（释放时发现锁不属于自己）的次数
+ */
+@Component
+public class LockMetrics {
+    //构造注入
+    private final MeterRegistry meterRegistry;
+
+    //末尾的id，例如 lock:cache:shop:1 -> lock:cache:shop，lock:order1010 -> lock:order
+    private static final Pattern ID_SUFFIX = Pattern.compile(":?\\d+$");
+
+    public LockMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    public void recordAcquire(String lockKey, long nanos, boolean success){
+        Timer.builder("lock.acquire")
+                .tag("name", prefixOf(lockKey))
+                .tag("result", success ? "success" : "failure")
+                .register(meterRegistry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordHold(String lockKey, long nanos){
+        Timer.builder("lock.hold")
+                .tag("name", prefixOf(lockKey))
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordLeaseExpired(String lockKey){
+        meterRegistry.counter("lock.lease.expired", "name", prefixOf(lockKey)).increment();
+    }
+
+    private static String prefixOf(String lockKey){
+        return ID_SUFFIX.matcher(lockKey).replaceFirst("");
+    }
+}
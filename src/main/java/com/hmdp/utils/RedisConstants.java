@@ -10,13 +10,105 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final String CACHE_SHOP_TYPE_KEY = "shop:type";
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_USER_TTL = 30L;
 
+    public static final Integer LOCAL_CACHE_SHOP_SIZE = 1000;
+    public static final Long LOCAL_CACHE_SHOP_TTL = 60L;
+    public static final Integer LOCAL_CACHE_SHOP_TYPE_SIZE = 1;
+    public static final Long LOCAL_CACHE_SHOP_TYPE_TTL = 300L;
+    public static final Integer LOCAL_CACHE_VERSION_STRIPES = 1024;
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final Integer CACHE_REBUILD_POOL_SIZE = 10;
+    public static final Integer CACHE_REBUILD_QUEUE_SIZE = 1000;
+    public static final Long CACHE_LOGICAL_MAX_STALE = 5 * 1000L;
+    public static final long CACHE_REFRESH_SCAN_INTERVAL = 1000L;
+    public static final Long CACHE_REFRESH_WINDOW = 60 * 1000L;
+    public static final Double CACHE_REFRESH_AHEAD_RATIO = 0.2;
+    public static final Integer CACHE_REFRESH_MAX_KEYS = 10000;
+
+    public static final String BLOOM_KEY_PREFIX = "bloom:";
+    public static final long BLOOM_EXPECTED_INSERTIONS = 100000L;
+    public static final double BLOOM_FPP = 0.01;
+    public static final long BLOOM_GROWTH_FACTOR = 2L;
+    public static final long BLOOM_REBUILD_INTERVAL = 30 * 60 * 1000L;
+    public static final long BLOOM_REBUILD_CHECK_INTERVAL = 60 * 1000L;
+    public static final long BLOOM_SYNC_INTERVAL = 10 * 1000L;
+    public static final Long BLOOM_BUILD_TIMEOUT = 10 * 60L;
+    public static final Long BLOOM_OLD_GENERATION_TTL = 10 * 60L;
+    public static final String BLOOM_META_SUFFIX = "meta";
+    public static final String BLOOM_BUILD_LOCK_SUFFIX = "building";
+    public static final String BLOOM_REBUILD_SUFFIX = ":rebuild:";
+    public static final String BLOOM_ADD_CHANNEL = "bloom:add";
+
+    public static final String LOCK_KEY_PREFIX = "lock:";
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    public static final Long LOCK_SHOP_WAIT = 500L;
+    public static final String LOCK_UNLOCK_CHANNEL = "lock:unlock";
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_ORDER_STATUS_KEY = "seckill:order:state:";
+    public static final Long SECKILL_ORDER_STATUS_TTL = 30 * 60L;
+    public static final String SECKILL_VOUCHER_KEY = "seckill:voucher:";
+    public static final String SECKILL_VOUCHER_NULL_KEY = "seckill:voucher:null:";
+    public static final Long SECKILL_VOUCHER_NULL_TTL = 60L;
+    public static final Long SECKILL_META_NULL_TTL = 5 * 1000L;
+    public static final Integer SECKILL_META_NULL_SIZE = 10000;
+    public static final String SECKILL_LIMIT_KEY = "seckill:limit:";
+    public static final String SECKILL_BUCKET_KEY = "seckill:bucket:";
+    public static final Integer SECKILL_LIMIT_RATE = 1000;
+    public static final Integer SECKILL_LIMIT_BURST = 2000;
+    public static final Integer SECKILL_LIMIT_CONCURRENCY = 8;
+    public static final Long SECKILL_LIMIT_QUEUE_WAIT = 200L;
+    public static final Long SECKILL_LIMIT_REFRESH = 10 * 1000L;
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final long SECKILL_SOLD_OUT_TTL = 60 * 1000L;
+    public static final String SECKILL_SHARDS_KEY = "seckill:shards:";
+    public static final String SECKILL_SHARD_END_KEY = "seckill:shard:end";
+    public static final Integer SECKILL_SHARD_THRESHOLD = 1000;
+    public static final Integer SECKILL_STOCK_SHARDS = 8;
+    public static final long SECKILL_SHARD_RECONCILE_INTERVAL = 60 * 1000L;
+    public static final String SECKILL_RESERVE_KEY = "seckill:reserve";
+    public static final long SECKILL_RESERVE_TIMEOUT = 30 * 1000L;
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final Integer SECKILL_ORDER_CONSUMERS = 2;
+    public static final Integer SECKILL_ORDER_BATCH_SIZE = 200;
+    public static final Long SECKILL_ORDER_BATCH_WAIT = 50L;
+    public static final Long SECKILL_ORDER_CLAIM_COUNT = 100L;
+    public static final Long SECKILL_ORDER_CLAIM_IDLE = 60L;
+    public static final Long SECKILL_ORDER_CLAIM_INTERVAL = 30 * 1000L;
+    public static final Long SECKILL_ORDER_MAX_DELIVERIES = 5L;
+    public static final String SECKILL_ORDER_DEAD_LETTER_STREAM = "stream.orders.dead";
+    public static final Long ID_SEGMENT_STEP = 1000L;
+    public static final Double ID_SEGMENT_PREFETCH_RATIO = 0.8;
+    public static final String ID_WORKER_KEY = "id:worker:";
+    public static final Long ID_WORKER_LEASE_TTL = 60L;
+    public static final Long ID_WORKER_HEARTBEAT = 20L;
+    public static final Long ID_WORKER_MAX_BACKWARD = 5L;
+
     public static final String BLOG_LIKED_KEY = "blog:liked:";
+    public static final String BLOG_LIKED_DELTA_KEY = "blog:liked:delta";
+    public static final String BLOG_LIKED_FLUSHING_KEY = "blog:liked:delta:flushing";
+    public static final String BLOG_LIKED_FLUSH_ID_KEY = "blog:liked:delta:flushing:id";
+    public static final String BLOG_LIKED_DEAD_LETTER_KEY = "blog:liked:delta:dead";
+    public static final long BLOG_LIKE_FLUSH_INTERVAL = 5 * 1000L;
+    public static final String BLOG_HOT_KEY = "blog:hot";
+    public static final String BLOG_HOT_SEED_KEY = "blog:hot:seeded";
+    public static final Integer BLOG_HOT_SEED_BATCH = 1000;
+    public static final Long BLOG_HOT_SEED_TTL = 10 * 60L;
+    public static final Long BLOG_HOT_SEED_LOCK_WAIT = 5 * 1000L;
+    public static final long BLOG_HOT_SEED_CHECK_INTERVAL = 10 * 1000L;
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
+    public static final Double SHOP_GEO_RADIUS = 5000D;
+    public static final Double SHOP_GEO_CELL_SIZE = 0.02;
+    public static final long SHOP_GEO_INDEX_REBUILD_INTERVAL = 30 * 60 * 1000L;
+    public static final String SHOP_GEO_REBUILD_SUFFIX = ":rebuild:";
+    public static final Long SHOP_GEO_REPLAY_MARGIN = 60L;
     public static final String USER_SIGN_KEY = "sign:";
 }
@@ -0,0 +1,78 @@
+package com.hmdp.utils;
+
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分布式锁工厂，同时负责唤醒等待锁的线程：
+ * 锁释放时在 lock:unlock 频道发布锁key，本节点等待该锁的线程被唤醒后立即重试，
+ * 等待期间线程挂起，不轮询Redis
+ */
+@Component
+public class RedisLockClient implements MessageListener {
+    //构造注入
+    private final StringRedisTemplate stringRedisTemplate;
+    private final LockMetrics lockMetrics;
+
+    //锁key -> 本节点的等待者
+    private final Map<String, Waiters> waiters = new ConcurrentHashMap<>();
+
+    public RedisLockClient(StringRedisTemplate stringRedisTemplate, LockMetrics lockMetrics) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.lockMetrics = lockMetrics;
+    }
+
+    /**
+     * 获取可重入锁，锁key为 lock:{name}
+     */
+    public ILock getLock(String name){
+        return new RedisReentrantLock(name, stringRedisTemplate, this, lockMetrics);
+    }
+
+    //开始等待某个锁的释放通知，必须与 unsubscribe 成对调用
+    Waiters subscribe(String lockKey){
+        return waiters.compute(lockKey, (k, w) -> {
+            if (w == null){
+                w = new Waiters();
+            }
+            w.count++;
+            return w;
+        });
+    }
+
+    void unsubscribe(String lockKey){
+        waiters.computeIfPresent(lockKey, (k, w) -> --w.count > 0 ? w : null);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String lockKey = new String(message.getBody(), StandardCharsets.UTF_8);
+        Waiters w = waiters.get(lockKey);
+        if (w != null){
+            //按登记的等待者数量发放许可，正在重试、尚未挂起的等待者也能拿到许可，不会错过这次通知；
+            //已发放未取走的许可不重复发放，竞争失败的线程继续等待下一次通知
+            int permits = w.count - w.semaphore.availablePermits();
+            if (permits > 0){
+                w.semaphore.release(permits);
+            }
+        }
+    }
+
+    static class Waiters {
+        private final Semaphore semaphore = new Semaphore(0);
+        //等待者数量：重试加锁之前登记，结束等待后注销，只在compute中修改
+        private volatile int count;
+
+        boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+            return semaphore.tryAcquire(timeout, unit);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.LOCK_UNLOCK_CHANNEL;
+
+/**
+ * 基于Redis hash的可重入锁：
+ * 1.hash的field是线程标识，value是重入次数，同一线程可以多次加锁
+ * 2.持有期间看门狗每 1/3 过期时间续期一次，业务执行时间超过过期时间也不会丢锁；
+ *   节点宕机后停止续期，锁在过期时间后自动释放
+ * 3.释放时校验持有者，不会误删其他线程的锁；完全释放时发布通知，唤醒等待的线程
+ * 通过 RedisLockClient.getLock 获取
+ */
+@Slf4j
+public class RedisReentrantLock implements ILock {
+
+    private static final String KEY_PREFIX = "lock:";
+    private static final String ID_PREFIX = UUID.randomUUID().toString(true) + "-";
+    public static final DefaultRedisScript<Long> LOCK_SCRIPT;
+    public static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    public static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    static {
+        LOCK_SCRIPT = new DefaultRedisScript<>();
+        LOCK_SCRIPT.setLocation(new ClassPathResource("reentrantLock.lua"));
+        LOCK_SCRIPT.setResultType(Long.class);
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("reentrantUnlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("reentrantRenew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+    }
+    //看门狗线程，所有锁共用
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "redis-lock-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+    //锁key + 线程标识 -> 续期任务
+    private static final Map<String, Renewal> RENEWALS = new ConcurrentHashMap<>();
+
+    private final String key;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisLockClient lockClient;
+    private final LockMetrics lockMetrics;
+
+    RedisReentrantLock(String name, StringRedisTemplate stringRedisTemplate,
+                       RedisLockClient lockClient, LockMetrics lockMetrics) {
+        this.key = KEY_PREFIX + name;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.lockClient = lockClient;
+        this.lockMetrics = lockMetrics;
+    }
+
+    /**
+     * 不等待，获取失败直接返回
+     * @param timeoutSec 锁的过期时间，持有期间自动续期
+     */
+    @Override
+    public boolean tryLock(long timeoutSec) {
+        return tryLock(0, timeoutSec, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 获取失败时挂起等待释放通知，最多等待到锁的剩余过期时间（持有者宕机时锁自动过期）后重试
+     * @param leaseTime 锁的过期时间，持有期间自动续期
+     */
+    @Override
+    public boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) {
+        long start = System.nanoTime();
+        boolean success = tryAcquire(waitTime, leaseTime, unit);
+        lockMetrics.recordAcquire(key, System.nanoTime() - start, success);
+        return success;
+    }
+
+    private boolean tryAcquire(long waitTime, long leaseTime, TimeUnit unit) {
+        String threadId = threadId();
+        long leaseMillis = unit.toMillis(leaseTime);
+        long ttl = acquire(threadId, leaseMillis);
+        if (ttl == 0){
+            return true;
+        }
+        if (waitTime <= 0){
+            return false;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(waitTime);
+        //先登记等待再重试，避免错过登记之前发出的释放通知
+        RedisLockClient.Waiters waiters = lockClient.subscribe(key);
+        try {
+            while (true) {
+                ttl = acquire(threadId, leaseMillis);
+                if (ttl == 0){
+                    return true;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0){
+                    return false;
+                }
+                waiters.await(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(ttl)), TimeUnit.NANOSECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            lockClient.unsubscribe(key);
+        }
+    }
+
+    //加锁成功返回0，否则返回锁的剩余过期时间（毫秒）
+    private long acquire(String threadId, long leaseMillis) {
+        Long ttl = stringRedisTemplate.execute(LOCK_SCRIPT,
+                Collections.singletonList(key), threadId, String.valueOf(leaseMillis));
+        if (ttl == null || ttl != 0){
+            return ttl == null ? leaseMillis : ttl;
+        }
+        //第一次加锁时启动续期，重入时只增加计数
+        RENEWALS.compute(key + ":" + threadId, (k, renewal) -> {
+            if (renewal == null){
+                renewal = new Renewal(scheduleRenewal(threadId, leaseMillis), leaseMillis);
+            }
+            renewal.holds++;
+            return renewal;
+        });
+        return 0;
+    }
+
+    @Override
+    public void unLock() {
+        String threadId = threadId();
+        String renewalKey = key + ":" + threadId;
+        Renewal renewal = RENEWALS.get(renewalKey);
+        if (renewal == null){
+            log.warn("当前线程未持有锁：{}", key);
+            return;
+        }
+        Long result = stringRedisTemplate.execute(UNLOCK_SCRIPT,
+                Collections.singletonList(key), threadId, String.valueOf(renewal.leaseMillis), LOCK_UNLOCK_CHANNEL);
+        //最后一次释放时停止续期
+        RENEWALS.computeIfPresent(renewalKey, (k, r) -> {
+            if (--r.holds > 0){
+                return r;
+            }
+            r.future.cancel(false);
+            lockMetrics.recordHold(key, System.nanoTime() - r.acquiredAt);
+            return null;
+        });
+        if (result != null && result == -1){
+            //锁已过期（例如Redis中的key被删除），持有期间可能已有其他线程进入临界区
+            log.warn("释放锁时发现锁已不属于当前线程：{}", key);
+            lockMetrics.recordLeaseExpired(key);
+        }
+    }
+
+    private ScheduledFuture<?> scheduleRenewal(String threadId, long leaseMillis) {
+        long period = Math.max(1, leaseMillis / 3);
+        return WATCHDOG.scheduleAtFixedRate(() -> {
+            try {
+                Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT,
+                        Collections.singletonList(key), threadId, String.valueOf(leaseMillis));
+                if (renewed == null || renewed == 0){
+                    //锁已丢失，停止续期
+                    Renewal renewal = RENEWALS.remove(key + ":" + threadId);
+                    if (renewal != null){
+                        renewal.future.cancel(false);
+                        lockMetrics.recordLeaseExpired(key);
+                    }
+                }
+            } catch (Exception e) {
+                log.error("锁续期失败：{}", key, e);
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private static String threadId() {
+        return ID_PREFIX + Thread.currentThread().getId();
+    }
+
+    private static class Renewal {
+        private final ScheduledFuture<?> future;
+        private final long leaseMillis;
+        private final long acquiredAt = System.nanoTime();
+        //本地重入次数，减到0时停止续期
+        private int holds;
+
+        private Renewal(ScheduledFuture<?> future, long leaseMillis) {
+            this.future = future;
+            this.leaseMillis = leaseMillis;
+        }
+    }
+}
@@ -1,37 +1,308 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.util.RandomUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.*;
 
 //生成全局唯一ID
+@Slf4j
 @Component
 public class RedisWorker {
 
     private  StringRedisTemplate stringRedisTemplate;
 
-
     public static final long BEGIN_TIMESTAMP = 1672531200;
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+    private static final long SECONDS_PER_DAY = 86400;
+
+    //ID生成模式：incr 每个ID一次INCR；segment 号段模式，每次INCRBY领取一段序列号在本地分配；
+    //snowflake 启动时从Redis领取workerId，之后完全在本地生成
+    private final String mode;
+    //号段预取线程
+    private static final ExecutorService SEGMENT_LOADER = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+    //业务前缀 -> 号段
+    private final Map<String, SegmentBuffer> segmentBuffers = new ConcurrentHashMap<>();
+    //本地时区偏移，与 LocalDateTime.now().toEpochSecond(ZoneOffset.UTC) 的计算结果保持一致
+    private volatile long zoneOffsetSeconds;
+    private volatile long zoneOffsetCheckedAt;
+
+    //snowflake模式：32位时间戳 | 10位workerId | 22位序列号，时间戳部分与其他模式一致
+    private static final int WORKER_ID_BITS = 10;
+    private static final int SEQUENCE_BITS = 22;
+    private static final long MAX_WORKER_ID = (1L << WORKER_ID_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    public static final DefaultRedisScript<Long> WORKER_LEASE_SCRIPT;
+    static {
+        WORKER_LEASE_SCRIPT = new DefaultRedisScript<>();
+        WORKER_LEASE_SCRIPT.setLocation(new ClassPathResource("workerLease.lua"));
+        WORKER_LEASE_SCRIPT.setResultType(Long.class);
+    }
+    //workerId租约的持有者标识
+    private final String workerToken = UUID.randomUUID().toString(true);
+    private volatile long workerId = -1;
+    //租约在本地视角下的到期时间，超过后停止发号，防止workerId被其他节点领取后产生重复ID
+    private volatile long workerLeaseExpiresAt;
+    private long lastSecond = -1;
+    private long sequence;
+    private ScheduledExecutorService workerHeartbeat;
 
-    public RedisWorker(StringRedisTemplate stringRedisTemplate) {
+    public RedisWorker(StringRedisTemplate stringRedisTemplate, @Value("${hmdp.id-worker.mode:segment}") String mode) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.mode = mode;
+    }
+
+    @PostConstruct
+    private void init(){
+        if (!"snowflake".equals(mode)){
+            return;
+        }
+        claimWorkerId();
+        //定时续期租约，节点宕机后租约过期，workerId自动释放
+        workerHeartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "id-worker-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        workerHeartbeat.scheduleWithFixedDelay(this::renewWorkerId,
+                ID_WORKER_HEARTBEAT, ID_WORKER_HEARTBEAT, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy(){
+        if (workerHeartbeat == null){
+            return;
+        }
+        workerHeartbeat.shutdownNow();
+        //主动释放workerId
+        String key = ID_WORKER_KEY + workerId;
+        if (workerToken.equals(stringRedisTemplate.opsForValue().get(key))){
+            stringRedisTemplate.delete(key);
+        }
     }
 
     public long nextId(String keyPreix){
+        if ("incr".equals(mode)){
+            return nextIdByIncr(keyPreix);
+        }
+        if ("snowflake".equals(mode)){
+            return nextIdBySnowflake();
+        }
+        //生成时间戳
+        long nowSecond = localEpochSecond();
+        long timeStamp = nowSecond - BEGIN_TIMESTAMP;
+        //从本地号段获取序列号
+        long count = segmentBuffers.computeIfAbsent(keyPreix, SegmentBuffer::new).next(nowSecond / SECONDS_PER_DAY);
+        //拼接并返回
+        return timeStamp << 32 | count;
+    }
+
+    private long nextIdByIncr(String keyPreix){
         //生成时间戳
         LocalDateTime now = LocalDateTime.now();
         long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
         long timeStamp = nowSecond - BEGIN_TIMESTAMP;
         //生成序列号
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        String date = now.format(DATE_FORMATTER);
         Long count = stringRedisTemplate.opsForValue().increment("icr" + keyPreix + ":" + date);
         //拼接并返回
         return timeStamp << 32 | count;
+    }
+
+    private synchronized long nextIdBySnowflake(){
+        long now = localEpochSecond();
+        if (workerId < 0 || currentTimeMillis() > workerLeaseExpiresAt){
+            throw new IllegalStateException("workerId租约已失效，暂停生成ID");
+        }
+        if (now < lastSecond){
+            //时钟回拨：在允许范围内继续使用上一次的时间戳，超出则拒绝发号
+            if (lastSecond - now > ID_WORKER_MAX_BACKWARD){
+                throw new IllegalStateException("时钟回拨" + (lastSecond - now) + "秒，拒绝生成ID");
+            }
+            now = lastSecond;
+        }
+        if (now == lastSecond){
+            sequence = (sequence + 1) & SEQUENCE_MASK;
+            if (sequence == 0){
+                //当前秒序列号用完，借用下一秒
+                now = lastSecond + 1;
+            }
+        } else {
+            sequence = 0;
+        }
+        lastSecond = now;
+        return (now - BEGIN_TIMESTAMP) << 32 | workerId << SEQUENCE_BITS | sequence;
+    }
+
+    //从随机位置开始尝试 SET id:worker:n token NX EX ttl，领取一个空闲的workerId
+    void claimWorkerId(){
+        long start = RandomUtil.randomLong(MAX_WORKER_ID + 1);
+        for (long i = 0; i <= MAX_WORKER_ID; i++) {
+            long id = (start + i) & MAX_WORKER_ID;
+            long now = currentTimeMillis();
+            Boolean success = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(ID_WORKER_KEY + id, workerToken, ID_WORKER_LEASE_TTL, TimeUnit.SECONDS);
+            if (BooleanUtil.isTrue(success)){
+                workerId = id;
+                workerLeaseExpiresAt = now + TimeUnit.SECONDS.toMillis(ID_WORKER_LEASE_TTL);
+                log.info("领取workerId：{}", id);
+                return;
+            }
+        }
+        throw new IllegalStateException("没有空闲的workerId");
+    }
+
+    private void renewWorkerId(){
+        try {
+            long now = currentTimeMillis();
+            Long renewed = stringRedisTemplate.execute(WORKER_LEASE_SCRIPT,
+                    Collections.singletonList(ID_WORKER_KEY + workerId), workerToken, ID_WORKER_LEASE_TTL.toString());
+            if (renewed != null && renewed == 1){
+                workerLeaseExpiresAt = now + TimeUnit.SECONDS.toMillis(ID_WORKER_LEASE_TTL);
+                return;
+            }
+            //租约已丢失（例如长时间GC或网络中断），重新领取
+            log.warn("workerId {} 租约丢失，重新领取", workerId);
+            claimWorkerId();
+        } catch (Exception e) {
+            log.error("workerId续期失败", e);
+        }
+    }
+
+    //不创建LocalDateTime对象，按本地时区计算秒数，时区偏移每分钟刷新一次（夏令时）
+    private long localEpochSecond(){
+        long millis = currentTimeMillis();
+        if (millis - zoneOffsetCheckedAt > 60_000){
+            zoneOffsetSeconds = ZoneId.systemDefault().getRules()
+                    .getOffset(Instant.ofEpochMilli(millis)).getTotalSeconds();
+            zoneOffsetCheckedAt = millis;
+        }
+        return millis / 1000 + zoneOffsetSeconds;
+    }
+
+    //当前时间，包内可见，测试中可以覆盖以模拟时钟和时钟回拨
+    long currentTimeMillis(){
+        return System.currentTimeMillis();
+    }
+
+    //从Redis领取一个号段：INCRBY key step，得到 [end - step + 1, end]
+    private Segment loadSegment(String keyPreix, long day){
+        String date = LocalDate.ofEpochDay(day).format(DATE_FORMATTER);
+        Long end = stringRedisTemplate.opsForValue().increment("icr" + keyPreix + ":" + date, ID_SEGMENT_STEP);
+        return new Segment(day, end - ID_SEGMENT_STEP + 1, end + 1);
+    }
+
+    //一段连续的序列号 [start, max)
+    private static class Segment {
+        private final long day;
+        private final AtomicLong cursor;
+        private final long max;
+        //分配到该序列号时预取下一个号段
+        private final long prefetchAt;
+
+        private Segment(long day, long start, long max) {
+            this.day = day;
+            this.cursor = new AtomicLong(start);
+            this.max = max;
+            this.prefetchAt = start + (long) ((max - start) * ID_SEGMENT_PREFETCH_RATIO);
+        }
+    }
+
+    //双号段缓冲：当前号段用到一定比例时异步领取下一个号段
+    private class SegmentBuffer {
+        private final String keyPreix;
+        private volatile Segment current;
+        private volatile Segment next;
+        private boolean loading;
+
+        private SegmentBuffer(String keyPreix) {
+            this.keyPreix = keyPreix;
+        }
+
+        private long next(long day){
+            while (true) {
+                Segment segment = current;
+                if (segment == null || segment.day != day){
+                    switchSegment(segment, day);
+                    continue;
+                }
+                long value = segment.cursor.getAndIncrement();
+                if (value < segment.max){
+                    if (value == segment.prefetchAt){
+                        prefetch(day);
+                    }
+                    return value;
+                }
+                //当前号段用完，切换到下一个号段
+                switchSegment(segment, day);
+            }
+        }
 
+        private synchronized void switchSegment(Segment exhausted, long day){
+            if (current != exhausted){
+                //其他线程已经切换过
+                return;
+            }
+            Segment prefetched = next;
+            next = null;
+            if (prefetched != null && prefetched.day == day){
+                current = prefetched;
+            } else {
+                //预取未完成或跨天，同步领取
+                current = loadSegment(keyPreix, day);
+            }
+        }
 
+        private void prefetch(long day){
+            synchronized (this) {
+                if (loading || next != null){
+                    return;
+                }
+                loading = true;
+            }
+            SEGMENT_LOADER.submit(() -> {
+                try {
+                    Segment segment = loadSegment(keyPreix, day);
+                    synchronized (this) {
+                        next = segment;
+                    }
+                } catch (Exception e) {
+                    log.error("预取ID号段失败：{}", keyPreix, e);
+                } finally {
+                    synchronized (this) {
+                        loading = false;
+                    }
+                }
+            });
+        }
     }
 
     public static void main(String[] args) {
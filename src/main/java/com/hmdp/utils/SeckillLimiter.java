@@ -0,0 +1,159 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.Result;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀准入控制，请求到达秒杀逻辑之前依次经过：
+ * 1.本地令牌桶空窗：Redis令牌桶已空时记录下一个令牌的生成时间，在此之前直接在本地拒绝，不进入排队
+ * 2.本地并发许可：同一优惠券在本节点同时处理的请求数有上限，超出的请求排队等待一小段时间，超时拒绝
+ * 3.Redis令牌桶：所有节点共享的每秒准入数
+ * 限流参数保存在 seckill:limit:{voucherId}，未配置时使用默认值
+ */
+@Slf4j
+@Component
+public class SeckillLimiter {
+    //构造注入
+    private final StringRedisTemplate stringRedisTemplate;
+
+    public static final DefaultRedisScript<Long> TOKEN_BUCKET_SCRIPT;
+    static {
+        TOKEN_BUCKET_SCRIPT = new DefaultRedisScript<>();
+        TOKEN_BUCKET_SCRIPT.setLocation(new ClassPathResource("tokenBucket.lua"));
+        TOKEN_BUCKET_SCRIPT.setResultType(Long.class);
+    }
+
+    //优惠券id -> 限流器
+    private final Map<Long, Limiter> limiters = new ConcurrentHashMap<>();
+
+    public SeckillLimiter(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /**
+     * 获得准入后执行秒杀逻辑，未获得准入直接返回失败
+     */
+    public Result execute(Long voucherId, Supplier<Result> seckill) {
+        Limiter limiter = getLimiter(voucherId);
+        //1.令牌桶已空，不进入排队直接拒绝，避免占用请求线程
+        if (System.currentTimeMillis() < limiter.emptyUntil){
+            return Result.fail("抢购人数过多，请稍后再试");
+        }
+        //2.本地并发许可，排队等待
+        boolean acquired;
+        try {
+            acquired = limiter.permits.tryAcquire(limiter.queueWait, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if (!acquired){
+            return Result.fail("抢购人数过多，请稍后再试");
+        }
+        try {
+            //排队期间令牌桶可能已空，再次检查
+            long now = System.currentTimeMillis();
+            if (now < limiter.emptyUntil){
+                return Result.fail("抢购人数过多，请稍后再试");
+            }
+            //3.Redis令牌桶
+            Long wait = stringRedisTemplate.execute(TOKEN_BUCKET_SCRIPT,
+                    Collections.singletonList(SECKILL_BUCKET_KEY + voucherId),
+                    String.valueOf(limiter.rate), String.valueOf(limiter.burst), String.valueOf(now));
+            if (wait != null && wait > 0){
+                limiter.emptyUntil = now + wait;
+                return Result.fail("抢购人数过多，请稍后再试");
+            }
+            return seckill.get();
+        } finally {
+            limiter.permits.release();
+        }
+    }
+
+    /**
+     * 修改优惠券的限流参数，各节点在本地配置过期后生效
+     */
+    public void updateLimit(Long voucherId, Integer rate, Integer burst, Integer concurrency) {
+        Map<String, String> limit = new HashMap<>(3);
+        if (rate != null){
+            limit.put("rate", rate.toString());
+        }
+        if (burst != null){
+            limit.put("burst", burst.toString());
+        }
+        if (concurrency != null){
+            limit.put("concurrency", concurrency.toString());
+        }
+        if (limit.isEmpty()){
+            return;
+        }
+        stringRedisTemplate.opsForHash().putAll(SECKILL_LIMIT_KEY + voucherId, limit);
+        limiters.remove(voucherId);
+    }
+
+    private Limiter getLimiter(Long voucherId) {
+        Limiter limiter = limiters.get(voucherId);
+        if (limiter != null && System.currentTimeMillis() < limiter.expireAt){
+            return limiter;
+        }
+        Limiter loaded;
+        try {
+            loaded = loadLimiter(voucherId, limiter);
+        } catch (Exception e) {
+            //Redis异常时沿用旧配置
+            log.error("加载优惠券{}限流配置失败", voucherId, e);
+            if (limiter != null){
+                return limiter;
+            }
+            loaded = new Limiter(SECKILL_LIMIT_RATE, SECKILL_LIMIT_BURST, SECKILL_LIMIT_CONCURRENCY, null);
+        }
+        limiters.put(voucherId, loaded);
+        return loaded;
+    }
+
+    private Limiter loadLimiter(Long voucherId, Limiter old) {
+        Map<Object, Object> limit = stringRedisTemplate.opsForHash().entries(SECKILL_LIMIT_KEY + voucherId);
+        int rate = parse(limit.get("rate"), SECKILL_LIMIT_RATE);
+        int burst = parse(limit.get("burst"), SECKILL_LIMIT_BURST);
+        int concurrency = parse(limit.get("concurrency"), SECKILL_LIMIT_CONCURRENCY);
+        return new Limiter(rate, burst, concurrency, old);
+    }
+
+    private static int parse(Object value, int defaultValue) {
+        return value == null || StrUtil.isBlank(value.toString()) ? defaultValue : Integer.parseInt(value.toString());
+    }
+
+    private static class Limiter {
+        private final int rate;
+        private final int burst;
+        private final int concurrency;
+        private final long queueWait = SECKILL_LIMIT_QUEUE_WAIT;
+        private final Semaphore permits;
+        private final long expireAt = System.currentTimeMillis() + SECKILL_LIMIT_REFRESH;
+        private volatile long emptyUntil;
+
+        private Limiter(int rate, int burst, int concurrency, Limiter old) {
+            this.rate = Math.max(1, rate);
+            this.burst = Math.max(1, burst);
+            this.concurrency = Math.max(1, concurrency);
+            //并发数未变化时沿用原信号量，保证正在处理的请求仍被计数
+            this.permits = old != null && old.concurrency == this.concurrency ? old.permits : new Semaphore(this.concurrency);
+            this.emptyUntil = old != null ? old.emptyUntil : 0;
+        }
+    }
+}
@@ -1,59 +0,0 @@
-package com.hmdp.utils;
-
-import cn.hutool.core.lang.UUID;
-import cn.hutool.core.util.BooleanUtil;
-import org.springframework.core.io.ClassPathResource;
-import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
-
-import java.util.Collections;
-import java.util.concurrent.TimeUnit;
-
-public class SimpleRedisLock implements ILock{
-
-    private String name;
-    private StringRedisTemplate stringRedisTemplate;
-
-
-    public SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate) {
-        this.name = name;
-        this.stringRedisTemplate = stringRedisTemplate;
-    }
-
-    private static final String KEY_PREFIX = "lock:";
-    private static final String ID_PREFIX = UUID.randomUUID().toString(true)+"-";//改用uuid拼接线程id
-    public static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
-    static {
-        UNLOCK_SCRIPT=new DefaultRedisScript<>();
-        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unLock.lua"));
-        UNLOCK_SCRIPT.setResultType(Long.class);
-    }
-
-    @Override
-    public boolean tryLock(long timeoutSec) {
-        //获取锁
-        String threadId =ID_PREFIX+ Thread.currentThread().getId();
-        Boolean success = stringRedisTemplate
-                .opsForValue().setIfAbsent(KEY_PREFIX + name, threadId, timeoutSec, TimeUnit.SECONDS);
-        return BooleanUtil.isTrue(success);
-    }
-
-    @Override
-    public void unLock(){
-        //调用lua脚本 :保证判断和删除锁逻辑的原子性
-        stringRedisTemplate.execute(UNLOCK_SCRIPT,
-                Collections.singletonList(KEY_PREFIX + name),ID_PREFIX+ Thread.currentThread().getId());
-    }
-
-//    @Override
-//    public void unLock() {
-//        String threadId =ID_PREFIX+ Thread.currentThread().getId();
-//        //获取线程标识
-//        String id = stringRedisTemplate.opsForValue().get(KEY_PREFIX + name);
-//        //判断标识是否一致
-//        if (threadId.equals(id)){
-//            //释放锁
-//            stringRedisTemplate.delete(KEY_PREFIX + name);
-//        }
-//    }
-}
@@ -0,0 +1,70 @@
+package com.hmdp.utils;
+
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_TTL;
+
+//本地售罄标记：优惠券售罄后，后续请求直接在本地拒绝，不再访问Redis
+//标记在SECKILL_SOLD_OUT_TTL后过期，漏掉清除通知或库存被归还时，之后的请求重新由Redis判断
+@Component
+public class SoldOutRegistry implements MessageListener {
+    //构造注入
+    private final StringRedisTemplate stringRedisTemplate;
+
+    //优惠券id -> 标记过期时间
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    public SoldOutRegistry(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    public boolean isSoldOut(Long voucherId){
+        Long expireAt = soldOut.get(voucherId);
+        if (expireAt == null){
+            return false;
+        }
+        if (expireAt < System.currentTimeMillis()){
+            soldOut.remove(voucherId, expireAt);
+            return false;
+        }
+        return true;
+    }
+
+    //标记售罄并通知其他节点
+    public void markSoldOut(Long voucherId){
+        if (isSoldOut(voucherId)){
+            return;
+        }
+        if (soldOut.put(voucherId, System.currentTimeMillis() + SECKILL_SOLD_OUT_TTL) == null){
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, "+" + voucherId);
+        }
+    }
+
+    //补充库存后清除售罄标记并通知其他节点
+    public void clear(Long voucherId){
+        soldOut.remove(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, "-" + voucherId);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        if (body.length() < 2){
+            return;
+        }
+        Long voucherId = Long.valueOf(body.substring(1));
+        if (body.charAt(0) == '+'){
+            soldOut.put(voucherId, System.currentTimeMillis() + SECKILL_SOLD_OUT_TTL);
+        } else {
+            soldOut.remove(voucherId);
+        }
+    }
+}
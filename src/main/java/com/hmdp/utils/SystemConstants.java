@@ -5,4 +5,9 @@ public class SystemConstants {
     public static final String USER_NICK_NAME_PREFIX = "user_";
     public static final int DEFAULT_PAGE_SIZE = 5;
     public static final int MAX_PAGE_SIZE = 10;
+    public static final String ORDER_STATUS_QUEUED = "queued";
+    public static final String ORDER_STATUS_PERSISTED = "persisted";
+    public static final String ORDER_STATUS_FAILED = "failed";
+    public static final String HOT_BLOG_SEED_STARTED = "started";
+    public static final String HOT_BLOG_SEED_DONE = "done";
 }
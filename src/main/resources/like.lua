@@ -0,0 +1,23 @@
+--点赞/取消点赞：一次调用完成点赞集合、热门排行榜和待写入数据库的增量
+--KEYS[1] 点赞集合 blog:liked:{id} KEYS[2] 热门排行榜 blog:hot KEYS[3] 点赞数增量 blog:liked:delta
+--ARGV[1] 用户id ARGV[2] 笔记id ARGV[3] 当前时间（毫秒）
+--返回 1 点赞，0 取消点赞
+--旧版本的点赞集合 blog:liked{id}（SET）尚未迁移时先合并，避免已点过赞的用户重复点赞
+local oldKey = 'blog:liked' .. ARGV[2]
+local members = redis.call('smembers',oldKey)
+if (#members > 0) then
+    for i = 1, #members do
+        redis.call('zadd',KEYS[1],'NX',0,members[i])
+    end
+    redis.call('del',oldKey)
+end
+if (redis.call('zscore',KEYS[1],ARGV[1]) == false) then
+    redis.call('zadd',KEYS[1],ARGV[3],ARGV[1])
+    redis.call('zincrby',KEYS[2],1,ARGV[2])
+    redis.call('hincrby',KEYS[3],ARGV[2],1)
+    return 1
+end
+redis.call('zrem',KEYS[1],ARGV[1])
+redis.call('zincrby',KEYS[2],-1,ARGV[2])
+redis.call('hincrby',KEYS[3],ARGV[2],-1)
+return 0
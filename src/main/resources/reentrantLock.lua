@@ -0,0 +1,14 @@
+--可重入锁加锁：锁不存在或由当前线程持有时，重入次数加一并重置过期时间
+--KEYS[1] 锁key ARGV[1] 线程标识 ARGV[2] 过期时间（毫秒）
+--返回 0 加锁成功，否则返回锁的剩余过期时间（毫秒），等待者最多等待这么久
+if (redis.call('exists',KEYS[1]) == 0 or redis.call('hexists',KEYS[1],ARGV[1]) == 1) then
+    redis.call('hincrby',KEYS[1],ARGV[1],1)
+    redis.call('pexpire',KEYS[1],ARGV[2])
+    return 0
+end
+local ttl = redis.call('pttl',KEYS[1])
+if (ttl <= 0) then
+    --没有过期时间的锁只能等待释放通知
+    return tonumber(ARGV[2])
+end
+return ttl
@@ -0,0 +1,6 @@
+--看门狗续期：锁仍由当前线程持有时重置过期时间
+--KEYS[1] 锁key ARGV[1] 线程标识 ARGV[2] 过期时间（毫秒）
+if (redis.call('hexists',KEYS[1],ARGV[1]) == 1) then
+    return redis.call('pexpire',KEYS[1],ARGV[2])
+end
+return 0
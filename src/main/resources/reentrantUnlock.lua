@@ -0,0 +1,14 @@
+--可重入锁释放：只有持有者可以释放，重入次数减到0时删除锁并通知等待者
+--KEYS[1] 锁key ARGV[1] 线程标识 ARGV[2] 过期时间（毫秒） ARGV[3] 释放通知频道
+--返回 -1 不是锁的持有者，0 仍被重入持有，1 已释放
+if (redis.call('hexists',KEYS[1],ARGV[1]) == 0) then
+    return -1
+end
+local count = redis.call('hincrby',KEYS[1],ARGV[1],-1)
+if (count > 0) then
+    redis.call('pexpire',KEYS[1],ARGV[2])
+    return 0
+end
+redis.call('del',KEYS[1])
+redis.call('publish',ARGV[3],KEYS[1])
+return 1
@@ -3,16 +3,41 @@
 local voucherId = ARGV[1]
 --1.2用户id
 local userId = ARGV[2]
+--1.3订单id
+local orderId = ARGV[3]
+--1.4当前时间（毫秒）
+local now = tonumber(ARGV[4])
+--1.5订单状态过期时间（秒）
+local statusTtl = ARGV[5]
 
 --2.数据key
 --2.1库存key
-local stockKey = 'seckill:stock' .. voucherId
+local stockKey = 'seckill:stock:' .. voucherId
 --2.2订单key
-local orderKey = 'seckill:order' .. voucherId
+local orderKey = 'seckill:order:' .. voucherId
+--2.3秒杀信息key
+local voucherKey = 'seckill:voucher:' .. voucherId
+--2.4订单状态key，同时记录下单用户，查询时校验
+local statusKey = 'seckill:order:state:' .. orderId
 
 --脚本业务
+--3.0判断秒杀时间 hmget voucherKey beginTime endTime
+local window = redis.call('hmget',voucherKey,'beginTime','endTime')
+if (window[1] and now < tonumber(window[1])) then
+    --秒杀尚未开始
+    return 3
+end
+if (window[2] and now > tonumber(window[2])) then
+    --秒杀已结束
+    return 4
+end
 --3.1判断库存是否充足 get stockKey
-if(tonumber(redis.call('get',stockKey)) <= 0) then
+local stock = tonumber(redis.call('get',stockKey))
+if(stock == nil) then
+    --库存未加载（例如Redis数据丢失），不能当作售罄
+    return 5
+end
+if(stock <= 0) then
     --库存不足
     return 1
 end
@@ -24,5 +49,10 @@ end
 redis.call('incrby',stockKey,-1)
 --3.5 下单（保存用户） sadd orderKey userId
 redis.call('sadd',orderKey,userId)
+--3.6 发送消息到队列中 XADD stream.orders * k1 v1 k2 v2 ...
+redis.call('xadd','stream.orders','*','userId',userId,'voucherId',voucherId,'id',orderId)
+--3.7 记录订单状态：排队中 hmset statusKey status queued userId userId
+redis.call('hmset',statusKey,'status','queued','userId',userId)
+redis.call('expire',statusKey,statusTtl)
 
-return 0
\ No newline at end of file
+return 0
@@ -0,0 +1,12 @@
+--分片库存秒杀最后一步：发送订单消息并删除预留记录，两者原子完成
+--预留记录已被对账任务释放（例如请求线程长时间停顿）时不再下单
+--KEYS[1] 预留记录 seckill:reserve KEYS[2] 订单状态 seckill:order:state:{orderId}
+--ARGV[1] 订单id ARGV[2] 用户id ARGV[3] 优惠券id ARGV[4] 订单状态过期时间（秒）
+--返回 0 成功，1 预留记录已释放
+if (redis.call('hdel',KEYS[1],ARGV[1]) == 0) then
+    return 1
+end
+redis.call('xadd','stream.orders','*','userId',ARGV[2],'voucherId',ARGV[3],'id',ARGV[1])
+redis.call('hmset',KEYS[2],'status','queued','userId',ARGV[2])
+redis.call('expire',KEYS[2],ARGV[4])
+return 0
@@ -0,0 +1,18 @@
+--释放没有发出订单消息的预留：归还已扣减的分片库存并移出订单用户集合
+--KEYS[1] 预留记录 seckill:reserve KEYS[2] 分片库存 seckill:stock:{id}:{n} KEYS[3] 合并后的库存 seckill:stock:{id}
+--KEYS[4] 订单用户集合 seckill:order:{id}
+--ARGV[1] 订单id ARGV[2] 用户id ARGV[3] 是否已扣减分片库存（1/0）
+--返回 1 已释放，0 预留记录不存在（已下单或已被其他节点释放）
+if (redis.call('hdel',KEYS[1],ARGV[1]) == 0) then
+    return 0
+end
+if (ARGV[3] == '1') then
+    --分片已在秒杀结束后合并时，归还到合并后的库存
+    if (redis.call('exists',KEYS[2]) == 1) then
+        redis.call('incr',KEYS[2])
+    else
+        redis.call('incr',KEYS[3])
+    end
+end
+redis.call('srem',KEYS[4],ARGV[2])
+return 1
@@ -0,0 +1,16 @@
+--分片库存秒杀第一步：校验秒杀时间和一人一单，占位并写入预留记录，之后再扣减分片库存
+--KEYS[1] 秒杀信息 seckill:voucher:{id} KEYS[2] 订单用户集合 seckill:order:{id} KEYS[3] 预留记录 seckill:reserve
+--ARGV[1] 用户id ARGV[2] 订单id ARGV[3] 当前时间（毫秒） ARGV[4] 预留记录
+--返回 0 成功，2 重复下单，3 尚未开始，4 已结束
+local window = redis.call('hmget',KEYS[1],'beginTime','endTime')
+if (window[1] and tonumber(ARGV[3]) < tonumber(window[1])) then
+    return 3
+end
+if (window[2] and tonumber(ARGV[3]) > tonumber(window[2])) then
+    return 4
+end
+if (redis.call('sadd',KEYS[2],ARGV[1]) == 0) then
+    return 2
+end
+redis.call('hset',KEYS[3],ARGV[2],ARGV[4])
+return 0
@@ -0,0 +1,6 @@
+--扣减一个库存分片：库存充足则减一并返回剩余库存，否则返回-1
+local stock = tonumber(redis.call('get',KEYS[1]))
+if(stock == nil or stock <= 0) then
+    return -1
+end
+return redis.call('incrby',KEYS[1],-1)
@@ -0,0 +1,20 @@
+--导入一批笔记到热门排行榜，并迁移旧版本的点赞集合
+--KEYS[1] 热门排行榜 blog:hot KEYS[2] 点赞数增量 blog:liked:delta（调用方已写入待写入的批次）
+--ARGV 依次为 笔记id, 数据库中的点赞数 ...
+--分数 = 数据库点赞数 + 尚未写入数据库的增量，与点赞脚本互斥执行，导入期间的点赞不会被覆盖或重复计算
+for i = 1, #ARGV, 2 do
+    local blogId = ARGV[i]
+    local liked = tonumber(ARGV[i + 1])
+    local delta = tonumber(redis.call('hget',KEYS[2],blogId) or 0)
+    redis.call('zadd',KEYS[1],liked + delta,blogId)
+    --旧版本的点赞集合 blog:liked{id}（SET），合并到 blog:liked:{id}（ZSET）后删除
+    local oldKey = 'blog:liked' .. blogId
+    local members = redis.call('smembers',oldKey)
+    for j = 1, #members do
+        redis.call('zadd','blog:liked:' .. blogId,'NX',0,members[j])
+    end
+    if (#members > 0) then
+        redis.call('del',oldKey)
+    end
+end
+return 0
@@ -0,0 +1,31 @@
+--令牌桶：按时间补充令牌，有令牌则取走一个返回0，否则返回需要等待的毫秒数
+--KEYS[1] 令牌桶key，hash结构 tokens 剩余令牌，ts 上次补充时间
+--ARGV[1] 每秒生成令牌数 ARGV[2] 桶容量 ARGV[3] 当前时间（毫秒）
+local rate = tonumber(ARGV[1])
+local capacity = tonumber(ARGV[2])
+local now = tonumber(ARGV[3])
+
+local bucket = redis.call('hmget',KEYS[1],'tokens','ts')
+local tokens = tonumber(bucket[1])
+local ts = tonumber(bucket[2])
+if (tokens == nil or ts == nil) then
+    --首次访问，桶是满的
+    tokens = capacity
+    ts = now
+end
+--补充令牌，时钟回拨时不补充
+if (now > ts) then
+    tokens = math.min(capacity, tokens + (now - ts) * rate / 1000)
+    ts = now
+end
+
+local wait = 0
+if (tokens >= 1) then
+    tokens = tokens - 1
+else
+    wait = math.ceil((1 - tokens) * 1000 / rate)
+end
+redis.call('hmset',KEYS[1],'tokens',tokens,'ts',ts)
+--桶装满所需时间之后过期，过期等价于满桶
+redis.call('pexpire',KEYS[1],math.ceil(capacity * 1000 / rate) + 1000)
+return wait
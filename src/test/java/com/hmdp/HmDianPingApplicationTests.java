@@ -1,11 +1,27 @@
 package com.hmdp;
 
+import com.hmdp.entity.Shop;
 import com.hmdp.service.impl.ShopServiceImpl;
+import com.hmdp.utils.GeoGridIndex;
 import com.hmdp.utils.RedisWorker;
+import com.hmdp.utils.SystemConstants;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.geo.Circle;
+import org.springframework.data.geo.Distance;
+import org.springframework.data.geo.GeoResult;
+import org.springframework.data.geo.GeoResults;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.core.StringRedisTemplate;
 
 import javax.annotation.Resource;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.hmdp.utils.RedisConstants.*;
+import static org.junit.jupiter.api.Assertions.*;
 
 @SpringBootTest
 class HmDianPingApplicationTests {
@@ -14,12 +30,43 @@ class HmDianPingApplicationTests {
     private ShopServiceImpl shopService;
     @Resource
     private RedisWorker redisWorker;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
 
     @Test
     void testSaveShop(){
         shopService.saveShop2Redis(1l,10L);
     }
 
+    @Test
+    void loadShopData(){
+        shopService.loadShopGeo();
+    }
+
+    //本地网格索引与Redis GEO对同一批店铺的查询结果一致（GEO集合在启动时已导入），Redis坐标有精度损失，距离允许1米误差
+    @Test
+    void nearbyShopsMatchRedisGeo(){
+        GeoGridIndex index = new GeoGridIndex(SHOP_GEO_CELL_SIZE);
+        Map<Long, double[]> points = new HashMap<>();
+        for (Shop shop : shopService.query().eq("type_id", 1).list()) {
+            points.put(shop.getId(), new double[]{shop.getX(), shop.getY()});
+        }
+        index.load(1L, points, index.sequence());
+        double x = 120.149993, y = 30.334229;
+        GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo().radius(SHOP_GEO_KEY + 1,
+                new Circle(new Point(x, y), new Distance(SHOP_GEO_RADIUS, RedisGeoCommands.DistanceUnit.METERS)),
+                RedisGeoCommands.GeoRadiusCommandArgs.newGeoRadiusArgs().includeDistance().sortAscending()
+                        .limit(SystemConstants.DEFAULT_PAGE_SIZE));
+        assertNotNull(results);
+        List<GeoResult<RedisGeoCommands.GeoLocation<String>>> expected = results.getContent();
+        assertFalse(expected.isEmpty());
+        GeoGridIndex.Hits hits = index.nearby(1L, x, y, SHOP_GEO_RADIUS, 0, SystemConstants.DEFAULT_PAGE_SIZE);
+        assertEquals(expected.size(), hits.size());
+        for (int i = 0; i < hits.size(); i++) {
+            assertEquals(expected.get(i).getDistance().getValue(), hits.distance(i), 1.0);
+        }
+    }
+
     @Test
     void testIDWorker(){
         long time = redisWorker.nextId("time");
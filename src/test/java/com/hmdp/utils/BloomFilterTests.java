@@ -0,0 +1,93 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+//布隆过滤器是纯内存结构，不需要启动Spring容器
+class BloomFilterTests {
+
+    private static final long INSERTIONS = 100000;
+    private static final double FPP = 0.01;
+
+    @Test
+    void noFalseNegativesAndFppWithinBound(){
+        BloomFilter filter = new BloomFilter(INSERTIONS, FPP);
+        for (long id = 1; id <= INSERTIONS; id++) {
+            filter.put(String.valueOf(id));
+        }
+        for (long id = 1; id <= INSERTIONS; id++) {
+            assertTrue(filter.mightContain(String.valueOf(id)));
+        }
+        //用不存在的id统计误判率，允许一倍的统计误差
+        int falsePositives = 0;
+        int probes = 100000;
+        for (long id = INSERTIONS + 1; id <= INSERTIONS + probes; id++) {
+            if (filter.mightContain(String.valueOf(id))) {
+                falsePositives++;
+            }
+        }
+        double rate = (double) falsePositives / probes;
+        assertTrue(rate < FPP * 2, "误判率过高：" + rate);
+    }
+
+    @Test
+    void bitIndexesAreStableAndInRange(){
+        BloomFilter filter = new BloomFilter(1000, FPP);
+        int bitSize = filter.toRedisBitmap().length * 8;
+        //64位对齐
+        assertEquals(0, bitSize % 64);
+        for (long id = 1; id <= 1000; id++) {
+            long[] indexes = filter.bitIndexes(String.valueOf(id));
+            //k = m / n * ln2，1%误判率约为7
+            assertEquals(7, indexes.length);
+            assertArrayEquals(indexes, new BloomFilter(1000, FPP).bitIndexes(String.valueOf(id)));
+            for (long index : indexes) {
+                assertTrue(index >= 0 && index < bitSize);
+            }
+        }
+    }
+
+    @Test
+    void redisBitmapLayoutMatchesSetBit(){
+        BloomFilter filter = new BloomFilter(1000, FPP);
+        filter.put("42");
+        byte[] bitmap = filter.toRedisBitmap();
+        //与Redis SETBIT一致：offset对应第 offset/8 个字节的高位开始的第 offset%8 位
+        int setBits = 0;
+        for (byte b : bitmap) {
+            setBits += Integer.bitCount(b & 0xff);
+        }
+        long[] indexes = filter.bitIndexes("42");
+        for (long index : indexes) {
+            assertNotEquals(0, bitmap[(int) (index >>> 3)] & (0x80 >>> (index & 7)));
+        }
+        assertEquals(Arrays.stream(indexes).distinct().count(), setBits);
+    }
+
+    @Test
+    void mergeRoundTrip(){
+        BloomFilter source = new BloomFilter(1000, FPP);
+        for (long id = 1; id <= 500; id++) {
+            source.put(String.valueOf(id));
+        }
+        BloomFilter target = new BloomFilter(1000, FPP);
+        target.put("other");
+        target.merge(source.toRedisBitmap());
+        for (long id = 1; id <= 500; id++) {
+            assertTrue(target.mightContain(String.valueOf(id)));
+        }
+        assertTrue(target.mightContain("other"));
+        //合并结果再导出，等于两边bitmap按位或
+        BloomFilter only = new BloomFilter(1000, FPP);
+        only.put("other");
+        byte[] expected = source.toRedisBitmap();
+        byte[] other = only.toRedisBitmap();
+        byte[] merged = target.toRedisBitmap();
+        for (int i = 0; i < merged.length; i++) {
+            assertEquals((byte) (expected[i] | other[i]), merged[i]);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+//网格索引是纯内存结构，不需要启动Spring容器，结果与暴力计算逐条对比
+class GeoGridIndexTests {
+
+    private static final double RADIUS = 5000;
+    private static final double CELL_SIZE = 0.02;
+    private static final int PAGE_SIZE = 10;
+
+    @Test
+    void pagingMatchesBruteForce(){
+        Random random = new Random(42);
+        Map<Long, double[]> points = new HashMap<>();
+        for (long id = 1; id <= 20000; id++) {
+            points.put(id, new double[]{120 + random.nextDouble() * 0.3, 30.1 + random.nextDouble() * 0.3});
+        }
+        GeoGridIndex index = new GeoGridIndex(CELL_SIZE);
+        index.load(1L, points, index.sequence());
+        for (int q = 0; q < 20; q++) {
+            double x = 120 + random.nextDouble() * 0.3, y = 30.1 + random.nextDouble() * 0.3;
+            List<double[]> expected = bruteForce(points, x, y);
+            assertFalse(expected.isEmpty());
+            //偏移分页
+            for (int from = 0; from <= expected.size(); from += PAGE_SIZE) {
+                GeoGridIndex.Hits hits = index.nearby(1L, x, y, RADIUS, from, PAGE_SIZE);
+                assertPage(expected.subList(from, Math.min(from + PAGE_SIZE, expected.size())), hits);
+            }
+            //游标分页
+            double lastDistance = -1;
+            long lastId = Long.MIN_VALUE;
+            int from = 0;
+            while (true) {
+                GeoGridIndex.Hits hits = index.nearbyAfter(1L, x, y, RADIUS, lastDistance, lastId, PAGE_SIZE);
+                assertPage(expected.subList(from, Math.min(from + PAGE_SIZE, expected.size())), hits);
+                if (hits.size() == 0){
+                    break;
+                }
+                lastDistance = hits.distance(hits.size() - 1);
+                lastId = hits.id(hits.size() - 1);
+                from += hits.size();
+            }
+            assertEquals(expected.size(), from);
+        }
+    }
+
+    @Test
+    void loadKeepsWritesMadeAfterSequence(){
+        GeoGridIndex index = new GeoGridIndex(CELL_SIZE);
+        Map<Long, double[]> snapshot = new HashMap<>();
+        snapshot.put(1L, new double[]{120.1, 30.2});
+        snapshot.put(2L, new double[]{120.1, 30.2});
+        //全量数据读取之后发生的新增和删除
+        long since = index.sequence();
+        index.put(1L, 3L, 120.1, 30.2);
+        index.remove(1L, 2L);
+        index.load(1L, snapshot, since);
+        GeoGridIndex.Hits hits = index.nearby(1L, 120.1, 30.2, RADIUS, 0, PAGE_SIZE);
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < hits.size(); i++) {
+            ids.add(hits.id(i));
+        }
+        Collections.sort(ids);
+        assertEquals(Arrays.asList(1L, 3L), ids);
+    }
+
+    @Test
+    void emptyLoadClearsRemovedGroup(){
+        GeoGridIndex index = new GeoGridIndex(CELL_SIZE);
+        Map<Long, double[]> snapshot = new HashMap<>();
+        snapshot.put(1L, new double[]{120.1, 30.2});
+        index.load(1L, snapshot, index.sequence());
+        index.load(2L, snapshot, index.sequence());
+        assertEquals(new HashSet<>(Arrays.asList(1L, 2L)), index.groups());
+        //分组2已不存在，用空数据全量替换
+        index.load(2L, Collections.emptyMap(), index.sequence());
+        assertEquals(Collections.singleton(1L), index.groups());
+        assertEquals(0, index.nearby(2L, 120.1, 30.2, RADIUS, 0, PAGE_SIZE).size());
+        assertEquals(1, index.nearby(1L, 120.1, 30.2, RADIUS, 0, PAGE_SIZE).size());
+    }
+
+    //半径内全部点，按(距离, id)升序，元素为 {id, distance}
+    private static List<double[]> bruteForce(Map<Long, double[]> points, double x, double y){
+        List<double[]> result = new ArrayList<>();
+        points.forEach((id, p) -> {
+            double d = GeoGridIndex.distance(x, y, p[0], p[1]);
+            if (d <= RADIUS){
+                result.add(new double[]{id, d});
+            }
+        });
+        result.sort(Comparator.<double[]>comparingDouble(e -> e[1]).thenComparingDouble(e -> e[0]));
+        return result;
+    }
+
+    private static void assertPage(List<double[]> expected, GeoGridIndex.Hits hits){
+        assertEquals(expected.size(), hits.size());
+        for (int i = 0; i < hits.size(); i++) {
+            assertEquals((long) expected.get(i)[0], hits.id(i));
+            assertEquals(expected.get(i)[1], hits.distance(i));
+        }
+    }
+}
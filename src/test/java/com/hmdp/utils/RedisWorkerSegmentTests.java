@@ -0,0 +1,103 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.ID_SEGMENT_PREFETCH_RATIO;
+import static com.hmdp.utils.RedisConstants.ID_SEGMENT_STEP;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+//号段模式只依赖INCRBY，用mock的StringRedisTemplate模拟Redis计数器，不需要启动Spring容器
+class RedisWorkerSegmentTests {
+
+    //固定时钟，避免测试跨天
+    private static final long NOW = 1700000000000L;
+
+    private final AtomicLong counter = new AtomicLong();
+    private ValueOperations<String, String> ops;
+    private RedisWorker redisWorker;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp(){
+        StringRedisTemplate template = mock(StringRedisTemplate.class);
+        ops = mock(ValueOperations.class);
+        when(template.opsForValue()).thenReturn(ops);
+        when(ops.increment(anyString(), anyLong()))
+                .thenAnswer(invocation -> counter.addAndGet(invocation.getArgument(1)));
+        redisWorker = new RedisWorker(template, "segment") {
+            @Override
+            long currentTimeMillis() {
+                return NOW;
+            }
+        };
+    }
+
+    @Test
+    void prefetchedSegmentIsHandedOverWithoutSyncLoad(){
+        long prefetchAt = (long) (ID_SEGMENT_STEP * ID_SEGMENT_PREFETCH_RATIO);
+        //第一个号段 [1, step]，分配到prefetchAt对应的序列号时触发预取
+        for (long i = 1; i <= prefetchAt + 1; i++) {
+            assertEquals(i, sequence(redisWorker.nextId("order")));
+        }
+        verify(ops, timeout(1000).times(2)).increment(anyString(), anyLong());
+        //用完第一个号段后直接切换到预取的号段，不再同步访问Redis
+        for (long i = prefetchAt + 2; i <= ID_SEGMENT_STEP + 1; i++) {
+            assertEquals(i, sequence(redisWorker.nextId("order")));
+        }
+        verify(ops, times(2)).increment(anyString(), anyLong());
+    }
+
+    @Test
+    void concurrentIdsAreUnique() throws Exception {
+        int threads = 8;
+        int perThread = 5000;
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(pool.submit(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        assertTrue(ids.add(redisWorker.nextId("order")));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(threads * perThread, ids.size());
+        //每个号段领取一次，预取与同步领取竞争时最多多领一段
+        long segments = (long) threads * perThread / ID_SEGMENT_STEP;
+        assertTrue(counter.get() / ID_SEGMENT_STEP <= segments + 2);
+    }
+
+    @Test
+    void prefixesHaveIndependentSegments(){
+        assertEquals(1, sequence(redisWorker.nextId("order")));
+        assertEquals(ID_SEGMENT_STEP + 1, sequence(redisWorker.nextId("blog")));
+        assertEquals(2, sequence(redisWorker.nextId("order")));
+    }
+
+    private static long sequence(long id){
+        return id & 0xFFFFFFFFL;
+    }
+}
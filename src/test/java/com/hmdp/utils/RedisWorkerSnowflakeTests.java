@@ -0,0 +1,101 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.ID_WORKER_LEASE_TTL;
+import static com.hmdp.utils.RedisConstants.ID_WORKER_MAX_BACKWARD;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+//snowflake模式只在领取workerId时访问Redis，用mock的StringRedisTemplate和可控时钟测试本地发号逻辑
+class RedisWorkerSnowflakeTests {
+
+    private static final int SEQUENCE_BITS = 22;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final long WORKER_MASK = (1L << 10) - 1;
+
+    //整秒开始，便于推算时间戳
+    private long now = 1700000000000L;
+    private RedisWorker redisWorker;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp(){
+        StringRedisTemplate template = mock(StringRedisTemplate.class);
+        ValueOperations<String, String> ops = mock(ValueOperations.class);
+        when(template.opsForValue()).thenReturn(ops);
+        when(ops.setIfAbsent(anyString(), anyString(), anyLong(), any(TimeUnit.class))).thenReturn(true);
+        redisWorker = new RedisWorker(template, "snowflake") {
+            @Override
+            long currentTimeMillis() {
+                return now;
+            }
+        };
+        redisWorker.claimWorkerId();
+    }
+
+    @Test
+    void sequenceOverflowBorrowsNextSecond(){
+        long first = redisWorker.nextId("order");
+        long second = first >>> 32;
+        long workerId = first >>> SEQUENCE_BITS & WORKER_MASK;
+        assertEquals(0, first & SEQUENCE_MASK);
+        long previous = first;
+        //同一秒内用完全部序列号
+        for (long i = 1; i <= SEQUENCE_MASK; i++) {
+            long id = redisWorker.nextId("order");
+            assertEquals(second, id >>> 32);
+            assertEquals(i, id & SEQUENCE_MASK);
+            previous = id;
+        }
+        //序列号溢出：时间戳借用下一秒，序列号从0开始
+        long borrowed = redisWorker.nextId("order");
+        assertEquals(second + 1, borrowed >>> 32);
+        assertEquals(0, borrowed & SEQUENCE_MASK);
+        assertEquals(workerId, borrowed >>> SEQUENCE_BITS & WORKER_MASK);
+        assertTrue(borrowed > previous);
+        //时钟仍停留在上一秒，继续使用借用的时间戳，ID保持递增
+        long next = redisWorker.nextId("order");
+        assertEquals(second + 1, next >>> 32);
+        assertEquals(1, next & SEQUENCE_MASK);
+        //时钟追上借用的时间戳后正常递增
+        now += 2000;
+        long caughtUp = redisWorker.nextId("order");
+        assertEquals(second + 2, caughtUp >>> 32);
+        assertEquals(0, caughtUp & SEQUENCE_MASK);
+    }
+
+    @Test
+    void smallClockRegressionKeepsLastTimestamp(){
+        now += 10_000;
+        long before = redisWorker.nextId("order");
+        now -= ID_WORKER_MAX_BACKWARD * 1000;
+        long after = redisWorker.nextId("order");
+        assertEquals(before >>> 32, after >>> 32);
+        assertTrue(after > before);
+    }
+
+    @Test
+    void largeClockRegressionIsRejected(){
+        now += 10_000;
+        long before = redisWorker.nextId("order");
+        now -= (ID_WORKER_MAX_BACKWARD + 1) * 1000;
+        assertThrows(IllegalStateException.class, () -> redisWorker.nextId("order"));
+        //时钟恢复后继续发号
+        now += (ID_WORKER_MAX_BACKWARD + 1) * 1000;
+        assertTrue(redisWorker.nextId("order") > before);
+    }
+
+    @Test
+    void expiredLeaseStopsIssuingIds(){
+        redisWorker.nextId("order");
+        now += TimeUnit.SECONDS.toMillis(ID_WORKER_LEASE_TTL) + 1;
+        assertThrows(IllegalStateException.class, () -> redisWorker.nextId("order"));
+    }
+}